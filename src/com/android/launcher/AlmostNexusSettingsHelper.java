@@ -51,6 +51,16 @@ public final class AlmostNexusSettingsHelper {
 		boolean newD = sp.getBoolean("drawerNew", true);
 		return newD;
 	}
+	public static boolean getDrawerAtlas(Context context) {
+		SharedPreferences sp = context.getSharedPreferences(ALMOSTNEXUS_PREFERENCES, context.MODE_PRIVATE);
+		boolean atlas = sp.getBoolean("drawerAtlas", false);
+		return atlas;
+	}
+	public static boolean getLowMemoryIcons(Context context) {
+		SharedPreferences sp = context.getSharedPreferences(ALMOSTNEXUS_PREFERENCES, context.MODE_PRIVATE);
+		boolean compact = sp.getBoolean("lowMemoryIcons", false);
+		return compact;
+	}
 	public static boolean getDesktopRotation(Context context) {
 		SharedPreferences sp = context.getSharedPreferences(ALMOSTNEXUS_PREFERENCES, context.MODE_PRIVATE);
 		boolean newD = sp.getBoolean("desktopRotation", true);
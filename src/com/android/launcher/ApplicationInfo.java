@@ -22,6 +22,8 @@ import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 
+import java.text.CollationKey;
+
 /**
  * Represents a launchable application. An application is made of a name (or title),
  * an intent and an icon.
@@ -33,6 +35,11 @@ class ApplicationInfo extends ItemInfo {
      */
     CharSequence title;
 
+    /**
+     * The collation key of the title, used to sort the applications list.
+     */
+    CollationKey titleKey;
+
     /**
      * The intent used to start the application.
      */
@@ -67,6 +74,7 @@ class ApplicationInfo extends ItemInfo {
     public ApplicationInfo(ApplicationInfo info) {
         super(info);
         title = info.title.toString();
+        titleKey = info.titleKey;
         intent = new Intent(info.intent);
         if (info.iconResource != null) {
             iconResource = new Intent.ShortcutIconResource();
@@ -74,6 +82,10 @@ class ApplicationInfo extends ItemInfo {
             iconResource.resourceName = info.iconResource.resourceName;
         }
         icon = info.icon;
+        if (icon instanceof FastBitmapDrawable) {
+            // Both items now draw the same bitmap
+            ((FastBitmapDrawable) icon).setShared();
+        }
         filtered = info.filtered;
         customIcon = info.customIcon;
     }
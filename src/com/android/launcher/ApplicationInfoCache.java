@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.content.ComponentName;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+/**
+ * Cache of the applications known to the launcher, keyed by component name.
+ *
+ * Every application stays in the cache but the memory used by the icons is
+ * bounded: when the budget is exceeded, the icons of the least recently used
+ * applications are dropped (the icon field is set to null) and must be
+ * reloaded with {@link LauncherModel#ensureIcon} before being used again.
+ * Pinned applications, for instance those currently shown in the drawer,
+ * never lose their icon.
+ *
+ * All methods are thread-safe but icons are only ever dropped by
+ * {@link #trim()} and {@link #trimTo(long)}, which must be invoked on the UI
+ * thread.
+ */
+final class ApplicationInfoCache {
+    private static final int INITIAL_CAPACITY = 50;
+
+    private static final class Entry {
+        final ApplicationInfo info;
+        int bytes;
+
+        Entry(ApplicationInfo info) {
+            this.info = info;
+        }
+    }
+
+    // Access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<ComponentName, Entry> mEntries =
+            new LinkedHashMap<ComponentName, Entry>(INITIAL_CAPACITY, 0.75f, true);
+    private final IdentityHashMap<ApplicationInfo, Integer> mPins =
+            new IdentityHashMap<ApplicationInfo, Integer>();
+
+    private final long mBudget;
+    private long mBytes;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param budget The maximum number of bytes used by the icons of the
+     *        unpinned applications.
+     */
+    ApplicationInfoCache(long budget) {
+        mBudget = budget;
+    }
+
+    synchronized ApplicationInfo get(ComponentName component) {
+        final Entry entry = mEntries.get(component);
+        return entry != null ? entry.info : null;
+    }
+
+    synchronized void put(ComponentName component, ApplicationInfo info) {
+        final Entry entry = new Entry(info);
+        entry.bytes = sizeOf(info.icon);
+        mBytes += entry.bytes;
+
+        final Entry previous = mEntries.put(component, entry);
+        if (previous != null) {
+            mBytes -= previous.bytes;
+        }
+    }
+
+    /**
+     * Adds the specified application unless the component is already cached.
+     *
+     * @return The cached application, which is info if it was added.
+     */
+    synchronized ApplicationInfo putIfAbsent(ComponentName component, ApplicationInfo info) {
+        final Entry entry = mEntries.get(component);
+        if (entry != null) return entry.info;
+
+        put(component, info);
+        return info;
+    }
+
+    synchronized ApplicationInfo remove(ComponentName component) {
+        final Entry entry = mEntries.remove(component);
+        if (entry == null) return null;
+
+        mBytes -= entry.bytes;
+        mPins.remove(entry.info);
+        return entry.info;
+    }
+
+    /**
+     * Removes all the applications of the specified packages.
+     */
+    synchronized void removePackages(Set<String> packageNames) {
+        final Iterator<java.util.Map.Entry<ComponentName, Entry>> iterator =
+                mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final java.util.Map.Entry<ComponentName, Entry> e = iterator.next();
+            if (packageNames.contains(e.getKey().getPackageName())) {
+                mBytes -= e.getValue().bytes;
+                mPins.remove(e.getValue().info);
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+        mPins.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Returns a snapshot of the cached applications.
+     */
+    synchronized ArrayList<ApplicationInfo> values() {
+        final ArrayList<ApplicationInfo> values = new ArrayList<ApplicationInfo>(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            values.add(entry.info);
+        }
+        return values;
+    }
+
+    /**
+     * Records that the icon of the specified application was loaded or replaced.
+     * This also marks the application as recently used.
+     */
+    synchronized void iconChanged(ApplicationInfo info) {
+        final Entry entry = mEntries.get(info.intent.getComponent());
+        if (entry != null && entry.info == info) {
+            mBytes -= entry.bytes;
+            entry.bytes = sizeOf(info.icon);
+            mBytes += entry.bytes;
+        }
+    }
+
+    /**
+     * Prevents the icon of the specified application from being dropped until
+     * {@link #unpin(ApplicationInfo)} is invoked the same number of times.
+     */
+    synchronized void pin(ApplicationInfo info) {
+        final Integer count = mPins.get(info);
+        mPins.put(info, count == null ? 1 : count + 1);
+    }
+
+    synchronized void unpin(ApplicationInfo info) {
+        final Integer count = mPins.get(info);
+        if (count == null) return;
+        if (count <= 1) {
+            mPins.remove(info);
+        } else {
+            mPins.put(info, count - 1);
+        }
+    }
+
+    synchronized void unpinAll() {
+        mPins.clear();
+    }
+
+    /**
+     * Drops icons until the cache fits in its budget. Must be invoked on the UI thread.
+     */
+    void trim() {
+        trimTo(mBudget);
+    }
+
+    /**
+     * Drops the icons of the least recently used, unpinned applications until
+     * the icons use at most the specified number of bytes. Must be invoked on
+     * the UI thread.
+     *
+     * @return The number of icons dropped.
+     */
+    synchronized int trimTo(long bytes) {
+        if (mBytes <= bytes) return 0;
+
+        int dropped = 0;
+        for (Entry entry : mEntries.values()) {
+            if (mBytes <= bytes) break;
+            if (entry.bytes == 0 || mPins.containsKey(entry.info)) continue;
+
+            final Drawable icon = entry.info.icon;
+            if (icon != null) icon.setCallback(null);
+            entry.info.icon = null;
+            FastBitmapDrawable.release(icon);
+            entry.info.filtered = false;
+
+            mBytes -= entry.bytes;
+            entry.bytes = 0;
+            dropped++;
+        }
+
+        return dropped;
+    }
+
+    /**
+     * Returns an estimate of the memory used by the specified icon.
+     */
+    static int sizeOf(Drawable icon) {
+        if (icon instanceof FastBitmapDrawable) {
+            return ((FastBitmapDrawable) icon).getByteCount();
+        }
+
+        Bitmap bitmap = null;
+        if (icon instanceof BitmapDrawable) {
+            bitmap = ((BitmapDrawable) icon).getBitmap();
+        }
+
+        if (bitmap != null) {
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        } else if (icon != null) {
+            return Math.max(icon.getIntrinsicWidth(), 0) * Math.max(icon.getIntrinsicHeight(), 0) * 4;
+        }
+        return 0;
+    }
+}
@@ -16,7 +16,9 @@
 
 package com.android.launcher;
 
+import android.content.ComponentName;
 import android.content.Context;
+import android.graphics.drawable.Drawable;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -24,33 +26,261 @@ import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 
 /**
  * GridView adapter to show the list of applications and shortcuts
  */
 public class ApplicationsAdapter extends ArrayAdapter<ApplicationInfo> {
     private final LayoutInflater mInflater;
+    private final ArrayList<ApplicationInfo> mApplications;
+    private final LauncherModel.ApplicationInfoComparator mComparator =
+            new LauncherModel.ApplicationInfoComparator();
+    // Whether the displayed applications are pinned in the application cache
+    private final boolean mPinIcons;
+
+    // Indexes of the content of the adapter, kept in sync by every mutator
+    private final HashMap<ComponentName, ApplicationInfo> mComponentIndex =
+            new HashMap<ComponentName, ApplicationInfo>();
+    private final HashMap<String, ArrayList<ApplicationInfo>> mPackageIndex =
+            new HashMap<String, ArrayList<ApplicationInfo>>();
 
     public ApplicationsAdapter(Context context, ArrayList<ApplicationInfo> apps) {
+        this(context, apps, false);
+    }
+
+    /**
+     * @param pinIcons True to keep the icons of the displayed applications in
+     *        the application cache, only for the applications of the cache.
+     *        The views must be released with {@link #releaseView(View)} when
+     *        they are set aside.
+     */
+    ApplicationsAdapter(Context context, ArrayList<ApplicationInfo> apps, boolean pinIcons) {
         super(context, 0, apps);
         mInflater = LayoutInflater.from(context);
+        mApplications = apps;
+        mPinIcons = pinIcons;
+
+        for (ApplicationInfo info : apps) {
+            index(info);
+        }
+    }
+
+    /**
+     * Returns the application launching the specified component, or null.
+     */
+    ApplicationInfo find(ComponentName component) {
+        return mComponentIndex.get(component);
+    }
+
+    /**
+     * Returns the applications of the specified package. The returned list
+     * must not be modified and is only valid until the adapter changes.
+     */
+    List<ApplicationInfo> findForPackage(String packageName) {
+        final ArrayList<ApplicationInfo> applications = mPackageIndex.get(packageName);
+        if (applications == null) return Collections.emptyList();
+        return applications;
+    }
+
+    private void index(ApplicationInfo info) {
+        final ComponentName component = info.intent.getComponent();
+        if (component == null) return;
+
+        mComponentIndex.put(component, info);
+
+        final String packageName = component.getPackageName();
+        ArrayList<ApplicationInfo> applications = mPackageIndex.get(packageName);
+        if (applications == null) {
+            applications = new ArrayList<ApplicationInfo>(1);
+            mPackageIndex.put(packageName, applications);
+        }
+        applications.add(info);
+    }
+
+    private void unindex(ApplicationInfo info) {
+        final ComponentName component = info.intent.getComponent();
+        if (component == null) return;
+
+        if (mComponentIndex.get(component) == info) {
+            mComponentIndex.remove(component);
+        }
+
+        final String packageName = component.getPackageName();
+        final ArrayList<ApplicationInfo> applications = mPackageIndex.get(packageName);
+        if (applications != null) {
+            applications.remove(info);
+            if (applications.size() == 0) mPackageIndex.remove(packageName);
+        }
+    }
+
+    @Override
+    public void add(ApplicationInfo info) {
+        index(info);
+        super.add(info);
+    }
+
+    @Override
+    public void insert(ApplicationInfo info, int index) {
+        index(info);
+        super.insert(info, index);
+    }
+
+    @Override
+    public void remove(ApplicationInfo info) {
+        unindex(info);
+        super.remove(info);
+    }
+
+    @Override
+    public void clear() {
+        mComponentIndex.clear();
+        mPackageIndex.clear();
+        super.clear();
+    }
+
+    /**
+     * Removes all the specified applications in a single pass over the list.
+     * The caller is responsible for invoking {@link #notifyDataSetChanged()}.
+     */
+    void removeAll(Collection<ApplicationInfo> infos) {
+        if (infos.size() == 0) return;
+
+        final IdentityHashMap<ApplicationInfo, Boolean> removed =
+                new IdentityHashMap<ApplicationInfo, Boolean>(infos.size());
+        for (ApplicationInfo info : infos) {
+            removed.put(info, Boolean.TRUE);
+            unindex(info);
+        }
+
+        final ArrayList<ApplicationInfo> applications = mApplications;
+        final int count = applications.size();
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            final ApplicationInfo info = applications.get(i);
+            if (!removed.containsKey(info)) {
+                applications.set(j++, info);
+            }
+        }
+        for (int i = count - 1; i >= j; i--) {
+            applications.remove(i);
+        }
+    }
+
+    /**
+     * Inserts the specified application at its position in the sorted list.
+     * The caller is responsible for invoking {@link #notifyDataSetChanged()}.
+     */
+    void addSorted(ApplicationInfo info) {
+        final ArrayList<ApplicationInfo> applications = mApplications;
+        int index = Collections.binarySearch(applications, info, mComparator);
+        if (index < 0) index = -(index + 1);
+        applications.add(index, info);
+        index(info);
+    }
+
+    /**
+     * Inserts the specified applications at their positions in the sorted list.
+     * The batch is sorted and then merged with the current list in a single pass.
+     * The caller is responsible for invoking {@link #notifyDataSetChanged()}.
+     */
+    void addAllSorted(List<ApplicationInfo> infos) {
+        final int batchCount = infos.size();
+        if (batchCount == 0) return;
+        if (batchCount == 1) {
+            addSorted(infos.get(0));
+            return;
+        }
+
+        final ArrayList<ApplicationInfo> batch = new ArrayList<ApplicationInfo>(infos);
+        Collections.sort(batch, mComparator);
+        for (int i = 0; i < batchCount; i++) {
+            index(batch.get(i));
+        }
+
+        final ArrayList<ApplicationInfo> applications = mApplications;
+        final int count = applications.size();
+        if (count == 0) {
+            applications.addAll(batch);
+            return;
+        }
+
+        final LauncherModel.ApplicationInfoComparator comparator = mComparator;
+        final ArrayList<ApplicationInfo> merged =
+                new ArrayList<ApplicationInfo>(count + batchCount);
+
+        int i = 0;
+        int j = 0;
+        while (i < count && j < batchCount) {
+            final ApplicationInfo current = applications.get(i);
+            final ApplicationInfo added = batch.get(j);
+            if (comparator.compare(added, current) < 0) {
+                merged.add(added);
+                j++;
+            } else {
+                merged.add(current);
+                i++;
+            }
+        }
+        while (i < count) merged.add(applications.get(i++));
+        while (j < batchCount) merged.add(batch.get(j++));
+
+        applications.clear();
+        applications.addAll(merged);
+    }
+
+    /**
+     * Moves the specified application to its sorted position, after its title changed.
+     * The caller is responsible for invoking {@link #notifyDataSetChanged()}.
+     */
+    void updateSorted(ApplicationInfo info) {
+        if (mApplications.remove(info)) {
+            unindex(info);
+            addSorted(info);
+        }
+    }
+
+    /**
+     * Releases the icon pinned by the specified view, which is not displayed
+     * anymore.
+     */
+    void releaseView(View view) {
+        final Object tag = view.getTag();
+        if (mPinIcons && tag instanceof ApplicationInfo) {
+            Launcher.getModel().unpin((ApplicationInfo) tag);
+            view.setTag(null);
+        }
     }
 
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         final ApplicationInfo info = getItem(position);
 
+        final LauncherModel model = Launcher.getModel();
         if (convertView == null) {
             convertView = mInflater.inflate(R.layout.application_boxed, parent, false);
+        } else {
+            releaseView(convertView);
+        }
+
+        if (mPinIcons) {
+            // Keep the icon of the displayed application in the application cache
+            convertView.setTag(info);
+            model.pin(info);
         }
+        Drawable icon = model.ensureIcon(info, getContext());
 
-        if (!info.filtered) {
-            info.icon = Utilities.createIconThumbnail(info.icon, getContext());
+        if (icon == info.icon && !info.filtered) {
+            icon = info.icon = Utilities.createIconThumbnail(info.icon, getContext());
             info.filtered = true;
         }
 
         final TextView textView = (TextView) convertView;
-        textView.setCompoundDrawablesWithIntrinsicBounds(null, info.icon, null, null);
+        textView.setCompoundDrawablesWithIntrinsicBounds(null, icon, null, null);
         textView.setText(info.title);
 
         return convertView;
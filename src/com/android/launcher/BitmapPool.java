@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Pool of mutable bitmaps keyed by size and configuration. The thumbnails
+ * are drawn into recycled bitmaps instead of new ones, which avoids
+ * reallocating every icon when the desktop is reloaded.
+ *
+ * A bitmap must only be released once nothing draws it anymore.
+ *
+ * All methods are thread-safe.
+ */
+final class BitmapPool {
+    // Maximum number of bitmaps of a given size and configuration
+    private static final int MAX_BITMAPS_PER_KEY = 32;
+    // Fraction of the heap the pooled bitmaps can use
+    private static final int HEAP_FRACTION = 32;
+
+    private static final HashMap<Long, ArrayList<Bitmap>> sBitmaps =
+            new HashMap<Long, ArrayList<Bitmap>>();
+    private static final long sBudget = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+    private static long sBytes;
+
+    private BitmapPool() {
+    }
+
+    /**
+     * Returns a transparent mutable bitmap of the specified size and
+     * configuration, recycled from the pool when possible.
+     */
+    static Bitmap obtain(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        synchronized (sBitmaps) {
+            final ArrayList<Bitmap> bitmaps = sBitmaps.get(key(width, height, config));
+            if (bitmaps != null && bitmaps.size() > 0) {
+                bitmap = bitmaps.remove(bitmaps.size() - 1);
+                sBytes -= sizeOf(bitmap);
+            }
+        }
+
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Returns the specified bitmap to the pool. The bitmap is dropped if it
+     * cannot be reused or if the pool is full.
+     */
+    static void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return;
+
+        final Bitmap.Config config = bitmap.getConfig();
+        if (config == null) return;
+
+        final int size = sizeOf(bitmap);
+        synchronized (sBitmaps) {
+            if (sBytes + size > sBudget) return;
+
+            final Long key = key(bitmap.getWidth(), bitmap.getHeight(), config);
+            ArrayList<Bitmap> bitmaps = sBitmaps.get(key);
+            if (bitmaps == null) {
+                bitmaps = new ArrayList<Bitmap>();
+                sBitmaps.put(key, bitmaps);
+            } else if (bitmaps.size() >= MAX_BITMAPS_PER_KEY) {
+                return;
+            }
+
+            for (Bitmap pooled : bitmaps) {
+                // Already released
+                if (pooled == bitmap) return;
+            }
+
+            bitmaps.add(bitmap);
+            sBytes += size;
+        }
+    }
+
+    /**
+     * Drops all the pooled bitmaps, for instance when memory is low.
+     */
+    static void clear() {
+        synchronized (sBitmaps) {
+            sBitmaps.clear();
+            sBytes = 0;
+        }
+    }
+
+    private static Long key(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -30,6 +30,9 @@ import android.graphics.Canvas;
 import java.util.ArrayList;
 
 public class CellLayout extends ViewGroup {
+    // The occupied cells of a row are stored as the bits of a long
+    private static final int MAX_CELLS_PER_AXIS = 64;
+
     private boolean mPortrait;
 
     private int mCellWidth;
@@ -51,8 +54,39 @@ public class CellLayout extends ViewGroup {
     private final CellInfo mCellInfo = new CellInfo();
     
     int[] mCellXY = new int[2];
-    
-    boolean[][] mOccupied;
+
+    // The cells covered by the children, indexed by row with one bit per
+    // column. Children can overlap, mCellCounts holds the number of children
+    // covering each cell and a bit is set while its count is positive
+    private final int mGridSize;
+    private final long[] mOccupiedRows;
+    private final int[] mCellCounts;
+    // The child covering each cell, the last one marked when children overlap
+    private final View[] mCellOwners;
+    // Incremented whenever the occupied cells change
+    private int mOccupancyVersion;
+    // Number of children covering no cell, such as the open folders
+    private int mFloatingChildren;
+
+    private OnHierarchyChangeListener mOnHierarchyChangeListener;
+
+    private final OnHierarchyChangeListener mOccupancyListener = new OnHierarchyChangeListener() {
+        public void onChildViewAdded(View parent, View child) {
+            if (child instanceof Folder) mFloatingChildren++;
+            markCells(child);
+            if (mOnHierarchyChangeListener != null) {
+                mOnHierarchyChangeListener.onChildViewAdded(parent, child);
+            }
+        }
+
+        public void onChildViewRemoved(View parent, View child) {
+            if (child instanceof Folder) mFloatingChildren--;
+            unmarkCells(child);
+            if (mOnHierarchyChangeListener != null) {
+                mOnHierarchyChangeListener.onChildViewRemoved(parent, child);
+            }
+        }
+    };
 
     private RectF mDragRect = new RectF();
 
@@ -89,13 +123,22 @@ public class CellLayout extends ViewGroup {
 
         setAlwaysDrawnWithCacheEnabled(false);
 
-        if (mOccupied == null) {
-            if (mPortrait) {
-                mOccupied = new boolean[mShortAxisCells][mLongAxisCells];
-            } else {
-                mOccupied = new boolean[mLongAxisCells][mShortAxisCells];
-            }
+        mGridSize = Math.max(mShortAxisCells, mLongAxisCells);
+        if (mGridSize > MAX_CELLS_PER_AXIS) {
+            throw new IllegalArgumentException("A CellLayout cannot have more than " +
+                    MAX_CELLS_PER_AXIS + " cells per axis");
         }
+        mOccupiedRows = new long[mGridSize];
+        mCellCounts = new int[mGridSize * mGridSize];
+        mCellOwners = new View[mGridSize * mGridSize];
+
+        super.setOnHierarchyChangeListener(mOccupancyListener);
+    }
+
+    @Override
+    public void setOnHierarchyChangeListener(OnHierarchyChangeListener listener) {
+        // The layout listens to its children to maintain the occupied cells
+        mOnHierarchyChangeListener = listener;
     }
 
     @Override
@@ -178,50 +221,33 @@ public class CellLayout extends ViewGroup {
         final CellInfo cellInfo = mCellInfo;
 
         if (action == MotionEvent.ACTION_DOWN) {
-            final Rect frame = mRect;
             final int x = (int) ev.getX() + mScrollX;
             final int y = (int) ev.getY() + mScrollY;
-            final int count = getChildCount();
-
-            boolean found = false;
-            for (int i = count - 1; i >= 0; i--) {
-                final View child = getChildAt(i);
-
-                if ((child.getVisibility()) == VISIBLE || child.getAnimation() != null) {
-                    child.getHitRect(frame);
-                    if (frame.contains(x, y)) {
-                        final LayoutParams lp = (LayoutParams) child.getLayoutParams();
-                        cellInfo.cell = child;
-                        cellInfo.cellX = lp.cellX;
-                        cellInfo.cellY = lp.cellY;
-                        cellInfo.spanX = lp.cellHSpan;
-                        cellInfo.spanY = lp.cellVSpan;
-                        cellInfo.valid = true;
-                        found = true;
-                        mDirtyTag = false;
-                        break;
-                    }
-                }
-            }
-
-            if (!found) {
-                int cellXY[] = mCellXY;
-                pointToCellExact(x, y, cellXY);
-
+            int cellXY[] = mCellXY;
+            pointToCellExact(x, y, cellXY);
+
+            final View child = findChildAt(x, y, cellXY);
+            if (child != null) {
+                final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+                cellInfo.cell = child;
+                cellInfo.cellX = lp.cellX;
+                cellInfo.cellY = lp.cellY;
+                cellInfo.spanX = lp.cellHSpan;
+                cellInfo.spanY = lp.cellVSpan;
+                cellInfo.valid = true;
+                mDirtyTag = false;
+            } else {
                 final boolean portrait = mPortrait;
                 final int xCount = portrait ? mShortAxisCells : mLongAxisCells;
                 final int yCount = portrait ? mLongAxisCells : mShortAxisCells;
 
-                final boolean[][] occupied = mOccupied;
-                findOccupiedCells(xCount, yCount, occupied, null);
-
                 cellInfo.cell = null;
                 cellInfo.cellX = cellXY[0];
                 cellInfo.cellY = cellXY[1];
                 cellInfo.spanX = 1;
                 cellInfo.spanY = 1;
                 cellInfo.valid = cellXY[0] >= 0 && cellXY[1] >= 0 && cellXY[0] < xCount &&
-                        cellXY[1] < yCount && !occupied[cellXY[0]][cellXY[1]];
+                        cellXY[1] < yCount && !isOccupied(cellXY[0], cellXY[1], mOccupiedRows);
 
                 // Instead of finding the interesting vacant cells here, wait until a
                 // caller invokes getTag() to retrieve the result. Finding the vacant
@@ -253,10 +279,8 @@ public class CellLayout extends ViewGroup {
             final int xCount = portrait ? mShortAxisCells : mLongAxisCells;
             final int yCount = portrait ? mLongAxisCells : mShortAxisCells;
 
-            final boolean[][] occupied = mOccupied;
-            findOccupiedCells(xCount, yCount, occupied, null);
-
-            findIntersectingVacantCells(info, info.cellX, info.cellY, xCount, yCount, occupied);
+            findIntersectingVacantCells(info, info.cellX, info.cellY, xCount, yCount,
+                    mOccupiedRows);
 
             mDirtyTag = false;
         }
@@ -264,7 +288,7 @@ public class CellLayout extends ViewGroup {
     }
 
     private static void findIntersectingVacantCells(CellInfo cellInfo, int x, int y,
-            int xCount, int yCount, boolean[][] occupied) {
+            int xCount, int yCount, long[] occupied) {
 
         cellInfo.maxVacantSpanX = Integer.MIN_VALUE;
         cellInfo.maxVacantSpanXSpanY = Integer.MIN_VALUE;
@@ -272,86 +296,15 @@ public class CellLayout extends ViewGroup {
         cellInfo.maxVacantSpanYSpanX = Integer.MIN_VALUE;
         cellInfo.clearVacantCells();
 
-        if (occupied[x][y]) {
+        if (isOccupied(x, y, occupied)) {
             return;
         }
 
-        cellInfo.current.set(x, y, x, y);
-
-        findVacantCell(cellInfo.current, xCount, yCount, occupied, cellInfo);
+        VacancyEngine.findMaximalRectangles(occupied, xCount, yCount, x, y, cellInfo);
     }
 
-    private static void findVacantCell(Rect current, int xCount, int yCount, boolean[][] occupied,
-            CellInfo cellInfo) {
-
-        addVacantCell(current, cellInfo);
-
-        if (current.left > 0) {
-            if (isColumnEmpty(current.left - 1, current.top, current.bottom, occupied)) {
-                current.left--;
-                findVacantCell(current, xCount, yCount, occupied, cellInfo);
-                current.left++;
-            }
-        }
-
-        if (current.right < xCount - 1) {
-            if (isColumnEmpty(current.right + 1, current.top, current.bottom, occupied)) {
-                current.right++;
-                findVacantCell(current, xCount, yCount, occupied, cellInfo);
-                current.right--;
-            }
-        }
-
-        if (current.top > 0) {
-            if (isRowEmpty(current.top - 1, current.left, current.right, occupied)) {
-                current.top--;
-                findVacantCell(current, xCount, yCount, occupied, cellInfo);
-                current.top++;
-            }
-        }
-
-        if (current.bottom < yCount - 1) {
-            if (isRowEmpty(current.bottom + 1, current.left, current.right, occupied)) {
-                current.bottom++;
-                findVacantCell(current, xCount, yCount, occupied, cellInfo);
-                current.bottom--;
-            }
-        }
-    }
-
-    private static void addVacantCell(Rect current, CellInfo cellInfo) {
-        CellInfo.VacantCell cell = CellInfo.VacantCell.acquire();
-        cell.cellX = current.left;
-        cell.cellY = current.top;
-        cell.spanX = current.right - current.left + 1;
-        cell.spanY = current.bottom - current.top + 1;
-        if (cell.spanX > cellInfo.maxVacantSpanX) {
-            cellInfo.maxVacantSpanX = cell.spanX;
-            cellInfo.maxVacantSpanXSpanY = cell.spanY;
-        }
-        if (cell.spanY > cellInfo.maxVacantSpanY) {
-            cellInfo.maxVacantSpanY = cell.spanY;
-            cellInfo.maxVacantSpanYSpanX = cell.spanX;
-        }
-        cellInfo.vacantCells.add(cell);
-    }
-
-    private static boolean isColumnEmpty(int x, int top, int bottom, boolean[][] occupied) {
-        for (int y = top; y <= bottom; y++) {
-            if (occupied[x][y]) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    private static boolean isRowEmpty(int y, int left, int right, boolean[][] occupied) {
-        for (int x = left; x <= right; x++) {
-            if (occupied[x][y]) {
-                return false;
-            }
-        }
-        return true;
+    private static boolean isOccupied(int x, int y, long[] occupied) {
+        return (occupied[y] & (1L << x)) != 0;
     }
 
     CellInfo findAllVacantCells(boolean[] occupiedCells, View ignoreView) {
@@ -359,26 +312,28 @@ public class CellLayout extends ViewGroup {
         final int xCount = portrait ? mShortAxisCells : mLongAxisCells;
         final int yCount = portrait ? mLongAxisCells : mShortAxisCells;
 
-        boolean[][] occupied = mOccupied;
-
+        final long[] occupied;
         if (occupiedCells != null) {
+            occupied = new long[yCount];
             for (int y = 0; y < yCount; y++) {
                 for (int x = 0; x < xCount; x++) {
-                    occupied[x][y] = occupiedCells[y * xCount + x];
+                    if (occupiedCells[y * xCount + x]) occupied[y] |= 1L << x;
                 }
             }
         } else {
-            findOccupiedCells(xCount, yCount, occupied, ignoreView);
+            occupied = copyOccupiedRows(ignoreView);
         }
 
         return findAllVacantCellsFromOccupied(occupied, xCount, yCount);
     }
 
     /**
-     * Variant of findAllVacantCells that uses LauncerModel as its source rather than the 
-     * views.
+     * Finds all the vacant areas of the grid, see {@link VacancyEngine}. Used with
+     * the cells occupied in LauncherModel rather than in the views.
+     *
+     * @param occupied The occupied cells, indexed by row with one bit per column.
      */
-    CellInfo findAllVacantCellsFromOccupied(boolean[][] occupied,
+    CellInfo findAllVacantCellsFromOccupied(long[] occupied,
             final int xCount, final int yCount) {
         CellInfo cellInfo = new CellInfo();
 
@@ -392,17 +347,7 @@ public class CellLayout extends ViewGroup {
         cellInfo.maxVacantSpanYSpanX = Integer.MIN_VALUE;
         cellInfo.screen = mCellInfo.screen;
 
-        Rect current = cellInfo.current;
-
-        for (int x = 0; x < xCount; x++) {
-            for (int y = 0; y < yCount; y++) {
-                if (!occupied[x][y]) {
-                    current.set(x, y, x, y);
-                    findVacantCell(current, xCount, yCount, occupied, cellInfo);
-                    occupied[x][y] = true;
-                }
-            }
-        }
+        VacancyEngine.findMaximalRectangles(occupied, xCount, yCount, -1, -1, cellInfo);
 
         cellInfo.valid = cellInfo.vacantCells.size() > 0;
 
@@ -525,6 +470,12 @@ public class CellLayout extends ViewGroup {
             View child = getChildAt(i);
             LayoutParams lp = (LayoutParams) child.getLayoutParams();
 
+            if (lp.occupying && (lp.occupiedX != lp.cellX || lp.occupiedY != lp.cellY ||
+                    lp.occupiedSpanX != lp.cellHSpan || lp.occupiedSpanY != lp.cellVSpan)) {
+                // The cells of the child were changed without notifying the layout
+                updateChildCells(child);
+            }
+
             if (mPortrait) {
                 lp.setup(cellWidth, cellHeight, mWidthGap, mHeightGap, shortAxisStartPadding,
                         longAxisStartPadding);
@@ -581,61 +532,135 @@ public class CellLayout extends ViewGroup {
     }
 
     /**
-     * Find a vacant area that will fit the given bounds nearest the requested
-     * cell location. Uses Euclidean distance to score multiple vacant areas.
-     * 
-     * @param pixelX The X location at which you want to search for a vacant area.
-     * @param pixelY The Y location at which you want to search for a vacant area.
-     * @param spanX Horizontal span of the object.
-     * @param spanY Vertical span of the object.
-     * @param vacantCells Pre-computed set of vacant cells to search.
-     * @param recycle Previously returned value to possibly recycle.
-     * @return The X, Y cell of a vacant area that can contain this object,
-     *         nearest the requested location.
+     * Makes the specified candidates hold the positions where an item of the
+     * specified span can be dropped in this layout. Nothing is computed when
+     * they already do and the occupied cells did not change since.
+     *
+     * @param ignoreView The view being dragged, whose cells are considered vacant.
      */
-    int[] findNearestVacantArea(int pixelX, int pixelY, int spanX, int spanY,
-            CellInfo vacantCells, int[] recycle) {
-        
-        // Keep track of best-scoring drop area
-        final int[] bestXY = recycle != null ? recycle : new int[2];
-        final int[] cellXY = mCellXY;
-        double bestDistance = Double.MAX_VALUE;
-        
-        // Bail early if vacant cells aren't valid
-        if (!vacantCells.valid) {
-            return null;
+    void updateDropCandidates(DropCandidates candidates, int spanX, int spanY, View ignoreView) {
+        final boolean portrait = mPortrait;
+        final int xCount = portrait ? mShortAxisCells : mLongAxisCells;
+        final int yCount = portrait ? mLongAxisCells : mShortAxisCells;
+
+        if (candidates.mLayout == this && candidates.mVersion == mOccupancyVersion &&
+                candidates.mIgnoreView == ignoreView && candidates.mSpanX == spanX &&
+                candidates.mSpanY == spanY && candidates.mCountX == xCount &&
+                candidates.mCountY == yCount) {
+            return;
         }
 
-        // Look across all vacant cells for best fit
-        final int size = vacantCells.vacantCells.size();
-        for (int i = 0; i < size; i++) {
-            final CellInfo.VacantCell cell = vacantCells.vacantCells.get(i);
-            
-            // Reject if vacant cell isn't our exact size
-            if (cell.spanX != spanX || cell.spanY != spanY) {
-                continue;
+        candidates.mLayout = this;
+        candidates.mVersion = mOccupancyVersion;
+        candidates.mIgnoreView = ignoreView;
+        candidates.mSpanX = spanX;
+        candidates.mSpanY = spanY;
+        candidates.mCountX = xCount;
+        candidates.mCountY = yCount;
+
+        final long[] rows = candidates.mRows;
+        getOccupiedRows(ignoreView, rows);
+
+        final long columns = VacancyEngine.spanMask(0, xCount);
+        final boolean fits = spanX > 0 && spanY > 0 && spanX <= xCount;
+        boolean empty = true;
+        for (int y = 0; y < yCount; y++) {
+            long starts = 0;
+            if (fits && y + spanY <= yCount) {
+                long occupied = 0;
+                for (int j = y; j < y + spanY; j++) {
+                    occupied |= rows[j];
+                }
+                // A column can start the item if the spanX columns from it are free
+                final long free = ~occupied & columns;
+                starts = free;
+                for (int i = 1; i < spanX; i++) {
+                    starts &= free >>> i;
+                }
             }
-            
-            // Score is center distance from requested pixel
-            cellToPoint(cell.cellX, cell.cellY, cellXY);
-            
-            double distance = Math.sqrt(Math.pow(cellXY[0] - pixelX, 2) +
-                    Math.pow(cellXY[1] - pixelY, 2));
+            // The rows below still hold the occupied cells, this one is not read again
+            rows[y] = starts;
+            if (starts != 0) empty = false;
+        }
+        candidates.mEmpty = empty;
+    }
+
+    /**
+     * Finds the position of the specified candidates nearest the requested
+     * location.
+     *
+     * @param pixelX The X location at which you want to search for a position.
+     * @param pixelY The Y location at which you want to search for a position.
+     * @param recycle Previously returned value to possibly recycle.
+     * @return The X, Y cell of the nearest position or null if there is none.
+     */
+    int[] findNearestDropCell(DropCandidates candidates, int pixelX, int pixelY, int[] recycle) {
+        if (candidates.mEmpty) return null;
+
+        final boolean portrait = mPortrait;
+        final int hStartPadding = portrait ? mShortAxisStartPadding : mLongAxisStartPadding;
+        final int vStartPadding = portrait ? mLongAxisStartPadding : mShortAxisStartPadding;
+        final int pitchX = mCellWidth + mWidthGap;
+        final int pitchY = mCellHeight + mHeightGap;
+
+        // The columns on both sides of the location are the only ones to check
+        int column = pitchX > 0 ? (pixelX - hStartPadding) / pitchX : 0;
+        column = Math.max(0, Math.min(column, MAX_CELLS_PER_AXIS - 1));
+
+        final long[] rows = candidates.mRows;
+        final int yCount = candidates.mCountY;
+        long bestDistance = Long.MAX_VALUE;
+        int bestX = -1;
+        int bestY = -1;
+
+        for (int y = 0; y < yCount; y++) {
+            final long row = rows[y];
+            if (row == 0) continue;
+
+            final int x = findNearestColumn(row, column, hStartPadding, pitchX, pixelX);
+            final long dx = hStartPadding + (long) x * pitchX - pixelX;
+            final long dy = vStartPadding + y * pitchY - pixelY;
+            final long distance = dx * dx + dy * dy;
             if (distance <= bestDistance) {
                 bestDistance = distance;
-                bestXY[0] = cell.cellX;
-                bestXY[1] = cell.cellY;
+                bestX = x;
+                bestY = y;
             }
         }
 
-        // Return null if no suitable location found 
-        if (bestDistance < Double.MAX_VALUE) {
-            return bestXY;
-        } else {
-            return null;
-        }
+        final int[] bestXY = recycle != null ? recycle : new int[2];
+        bestXY[0] = bestX;
+        bestXY[1] = bestY;
+        return bestXY;
     }
     
+    /**
+     * Returns the set bit of the specified row whose column is nearest the
+     * specified location: the last one up to the column under the location
+     * or the first one after it. The row must not be empty.
+     *
+     * @param row The candidate columns, one bit per column.
+     * @param column The column under the location.
+     * @param startPadding The position of the first column.
+     * @param pitch The distance between two columns.
+     * @param pixelX The location.
+     */
+    static int findNearestColumn(long row, int column, int startPadding, int pitch,
+            int pixelX) {
+        final long upTo = column >= Long.SIZE - 1 ? -1L : (1L << (column + 1)) - 1;
+        final long left = row & upTo;
+        final long right = row & ~upTo;
+
+        if (right == 0) return Long.SIZE - 1 - Long.numberOfLeadingZeros(left);
+        final int rightX = Long.numberOfTrailingZeros(right);
+        if (left == 0) return rightX;
+
+        final int leftX = Long.SIZE - 1 - Long.numberOfLeadingZeros(left);
+        final long leftDx = startPadding + (long) leftX * pitch - pixelX;
+        final long rightDx = startPadding + (long) rightX * pitch - pixelX;
+        return Math.abs(leftDx) <= Math.abs(rightDx) ? leftX : rightX;
+    }
+
     /**
      * Drop a child at the specified position
      *
@@ -648,6 +673,7 @@ public class CellLayout extends ViewGroup {
             lp.cellX = targetXY[0];
             lp.cellY = targetXY[1];
             lp.isDragging = false;
+            updateChildCells(child);
             mDragRect.setEmpty();
             child.requestLayout();
             invalidate();
@@ -749,23 +775,30 @@ public class CellLayout extends ViewGroup {
         final boolean portrait = mPortrait;
         final int xCount = portrait ? mShortAxisCells : mLongAxisCells;
         final int yCount = portrait ? mLongAxisCells : mShortAxisCells;
-        final boolean[][] occupied = mOccupied;
-
-        findOccupiedCells(xCount, yCount, occupied, null);
 
-        return findVacantCell(vacant, spanX, spanY, xCount, yCount, occupied);
+        return findVacantCell(vacant, spanX, spanY, xCount, yCount, mOccupiedRows);
     }
 
+    /**
+     * Finds the first area of the specified span whose cells are all vacant,
+     * scanning the columns from left to right.
+     *
+     * @param occupied The occupied cells, indexed by row with one bit per column.
+     */
     static boolean findVacantCell(int[] vacant, int spanX, int spanY,
-            int xCount, int yCount, boolean[][] occupied) {
-
-        for (int x = 0; x < xCount; x++) {
-            for (int y = 0; y < yCount; y++) {
-                boolean available = !occupied[x][y];
-out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
-                    for (int j = y; j < y + spanY - 1 && y < yCount; j++) {
-                        available = available && !occupied[i][j];
-                        if (!available) break out;
+            int xCount, int yCount, long[] occupied) {
+
+        if (spanX <= 0 || spanY <= 0) return false;
+
+        final long mask = VacancyEngine.spanMask(0, spanX);
+        for (int x = 0; x + spanX <= xCount; x++) {
+            final long columns = mask << x;
+            for (int y = 0; y + spanY <= yCount; y++) {
+                boolean available = true;
+                for (int j = y; j < y + spanY; j++) {
+                    if ((occupied[j] & columns) != 0) {
+                        available = false;
+                        break;
                     }
                 }
 
@@ -784,43 +817,167 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
         final boolean portrait = mPortrait;
         final int xCount = portrait ? mShortAxisCells : mLongAxisCells;
         final int yCount = portrait ? mLongAxisCells : mShortAxisCells;
-        final boolean[][] occupied = mOccupied;
-
-        findOccupiedCells(xCount, yCount, occupied, null);
+        final long[] occupied = mOccupiedRows;
 
         final boolean[] flat = new boolean[xCount * yCount];
         for (int y = 0; y < yCount; y++) {
             for (int x = 0; x < xCount; x++) {
-                flat[y * xCount + x] = occupied[x][y];
+                flat[y * xCount + x] = isOccupied(x, y, occupied);
             }
         }
 
         return flat;
     }
 
-    private void findOccupiedCells(int xCount, int yCount, boolean[][] occupied, View ignoreView) {
-        for (int x = 0; x < xCount; x++) {
-            for (int y = 0; y < yCount; y++) {
-                occupied[x][y] = false;
+    /**
+     * Returns the child under the specified point, or null if there is none.
+     *
+     * @param cellXY The cell containing the point, as returned by
+     *        {@link #pointToCellExact(int, int, int[])}.
+     */
+    private View findChildAt(int x, int y, int[] cellXY) {
+        final Rect frame = mRect;
+
+        if (mFloatingChildren > 0) {
+            // The open folders cover other children without owning their cells
+            for (int i = getChildCount() - 1; i >= 0; i--) {
+                final View child = getChildAt(i);
+                if (isTouchable(child)) {
+                    child.getHitRect(frame);
+                    if (frame.contains(x, y)) return child;
+                }
             }
+            return null;
         }
 
-        int count = getChildCount();
-        for (int i = 0; i < count; i++) {
-            View child = getChildAt(i);
-            if (child instanceof Folder || child.equals(ignoreView)) {
-                continue;
+        // A child is only hit within the cells it covers
+        final View owner = mCellOwners[cellXY[1] * mGridSize + cellXY[0]];
+        if (owner != null && isTouchable(owner)) {
+            owner.getHitRect(frame);
+            if (frame.contains(x, y)) return owner;
+        }
+        return null;
+    }
+
+    private static boolean isTouchable(View child) {
+        return child.getVisibility() == VISIBLE || child.getAnimation() != null;
+    }
+
+    /**
+     * Updates the occupied cells after the position or the span of the specified
+     * child changed.
+     */
+    void updateChildCells(View child) {
+        if (child.getParent() != this) return;
+        unmarkCells(child);
+        markCells(child);
+    }
+
+    /**
+     * Returns a copy of the occupied cells, without the cells covered only by
+     * the specified view.
+     */
+    private long[] copyOccupiedRows(View ignoreView) {
+        final long[] occupied = new long[mGridSize];
+        getOccupiedRows(ignoreView, occupied);
+        return occupied;
+    }
+
+    /**
+     * Copies the occupied cells into the specified rows, without the cells
+     * covered only by the specified view.
+     */
+    private void getOccupiedRows(View ignoreView, long[] occupied) {
+        System.arraycopy(mOccupiedRows, 0, occupied, 0, mGridSize);
+
+        if (ignoreView != null && ignoreView.getParent() == this) {
+            final LayoutParams lp = (LayoutParams) ignoreView.getLayoutParams();
+            if (lp.occupying) {
+                final int size = mGridSize;
+                final int right = Math.min(lp.occupiedX + lp.occupiedSpanX, size);
+                final int bottom = Math.min(lp.occupiedY + lp.occupiedSpanY, size);
+                for (int y = Math.max(lp.occupiedY, 0); y < bottom; y++) {
+                    for (int x = Math.max(lp.occupiedX, 0); x < right; x++) {
+                        if (mCellCounts[y * size + x] == 1) occupied[y] &= ~(1L << x);
+                    }
+                }
             }
-            LayoutParams lp = (LayoutParams) child.getLayoutParams();
+        }
+    }
+
+    private void markCells(View child) {
+        if (child instanceof Folder) return;
 
-            for (int x = lp.cellX; x < lp.cellX + lp.cellHSpan && x < xCount; x++) {
-                for (int y = lp.cellY; y < lp.cellY + lp.cellVSpan && y < yCount; y++) {
-                    occupied[x][y] = true;
+        final LayoutParams lp = (LayoutParams) child.getLayoutParams();
+        lp.occupying = true;
+        lp.occupiedX = lp.cellX;
+        lp.occupiedY = lp.cellY;
+        lp.occupiedSpanX = lp.cellHSpan;
+        lp.occupiedSpanY = lp.cellVSpan;
+        updateCellCounts(lp.cellX, lp.cellY, lp.cellHSpan, lp.cellVSpan, child, 1);
+    }
+
+    private void unmarkCells(View child) {
+        final ViewGroup.LayoutParams params = child.getLayoutParams();
+        if (!(params instanceof LayoutParams)) return;
+
+        // The cells the child was marked with, its layout params may have changed since
+        final LayoutParams lp = (LayoutParams) params;
+        if (!lp.occupying) return;
+        lp.occupying = false;
+        updateCellCounts(lp.occupiedX, lp.occupiedY, lp.occupiedSpanX, lp.occupiedSpanY,
+                child, -1);
+    }
+
+    private void updateCellCounts(int cellX, int cellY, int spanX, int spanY, View child,
+            int delta) {
+        final int size = mGridSize;
+        final long[] rows = mOccupiedRows;
+        final int[] counts = mCellCounts;
+        final View[] owners = mCellOwners;
+
+        mOccupancyVersion++;
+
+        final int right = Math.min(cellX + spanX, size);
+        final int bottom = Math.min(cellY + spanY, size);
+        for (int y = Math.max(cellY, 0); y < bottom; y++) {
+            for (int x = Math.max(cellX, 0); x < right; x++) {
+                final int index = y * size + x;
+                final int count = counts[index] += delta;
+                if (count > 0) {
+                    rows[y] |= 1L << x;
+                    if (delta > 0) {
+                        owners[index] = child;
+                    } else if (owners[index] == child) {
+                        owners[index] = findOwner(x, y);
+                    }
+                } else {
+                    rows[y] &= ~(1L << x);
+                    owners[index] = null;
                 }
             }
         }
     }
 
+    /**
+     * Returns the topmost child still covering the specified cell, only needed
+     * when children overlap.
+     */
+    private View findOwner(int x, int y) {
+        for (int i = getChildCount() - 1; i >= 0; i--) {
+            final View child = getChildAt(i);
+            final ViewGroup.LayoutParams params = child.getLayoutParams();
+            if (!(params instanceof LayoutParams)) continue;
+
+            final LayoutParams lp = (LayoutParams) params;
+            if (lp.occupying && x >= lp.occupiedX && x < lp.occupiedX + lp.occupiedSpanX &&
+                    y >= lp.occupiedY && y < lp.occupiedY + lp.occupiedSpanY) {
+                return child;
+            }
+        }
+        return null;
+    }
+
     @Override
     public ViewGroup.LayoutParams generateLayoutParams(AttributeSet attrs) {
         return new CellLayout.LayoutParams(getContext(), attrs);
@@ -875,6 +1032,13 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
 
         boolean regenerateId;
 
+        // The cells marked as occupied by the item in its CellLayout
+        boolean occupying;
+        int occupiedX;
+        int occupiedY;
+        int occupiedSpanX;
+        int occupiedSpanY;
+
         public LayoutParams(Context c, AttributeSet attrs) {
             super(c, attrs);
             cellHSpan = 1;
@@ -913,6 +1077,41 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
         }
     }
 
+    /**
+     * The positions where an item of a given span can be dropped in a layout,
+     * one bit per column in each row. They are computed once per drag, see
+     * {@link CellLayout#updateDropCandidates}, and computed again only when
+     * the occupied cells of the layout change.
+     */
+    static final class DropCandidates {
+        private CellLayout mLayout;
+        private View mIgnoreView;
+        private int mVersion;
+        private int mSpanX;
+        private int mSpanY;
+        private int mCountX;
+        private int mCountY;
+        private boolean mEmpty = true;
+        private final long[] mRows = new long[MAX_CELLS_PER_AXIS];
+
+        /**
+         * Forgets the layout and the dragged view, the candidates are computed
+         * again on their next use.
+         */
+        void reset() {
+            mLayout = null;
+            mIgnoreView = null;
+            mEmpty = true;
+        }
+
+        /**
+         * Returns true if the item cannot be dropped anywhere.
+         */
+        boolean isEmpty() {
+            return mEmpty;
+        }
+    }
+
     static final class CellInfo implements ContextMenu.ContextMenuInfo {
         /**
          * See View.AttachInfo.InvalidateInfo for futher explanations about
@@ -926,10 +1125,8 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
             int spanX;
             int spanY;
 
-            // We can create up to 523 vacant cells on a 4x4 grid, 100 seems
-            // like a reasonable compromise given the size of a VacantCell and
-            // the fact that the user is not likely to touch an empty 4x4 grid
-            // very often 
+            // Only the maximal vacant areas are kept, a grid has a few of them
+            // even when it is large and scattered with items
             private static final int POOL_LIMIT = 100;
             private static final Object sLock = new Object();
 
@@ -982,7 +1179,6 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
         int maxVacantSpanXSpanY;
         int maxVacantSpanY;
         int maxVacantSpanYSpanX;
-        final Rect current = new Rect();
 
         void clearVacantCells() {
             final ArrayList<VacantCell> list = vacantCells;
@@ -1001,13 +1197,13 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
                 return;
             }
 
-            final boolean[][] unflattened = new boolean[xCount][yCount];
+            final long[] rows = new long[yCount];
             for (int y = 0; y < yCount; y++) {
                 for (int x = 0; x < xCount; x++) {
-                    unflattened[x][y] = occupied[y * xCount + x];
+                    if (occupied[y * xCount + x]) rows[y] |= 1L << x;
                 }
             }
-            CellLayout.findIntersectingVacantCells(this, cellX, cellY, xCount, yCount, unflattened);
+            CellLayout.findIntersectingVacantCells(this, cellX, cellY, xCount, yCount, rows);
         }
 
         /**
@@ -1029,9 +1225,6 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
         }
 
         boolean findCellForSpan(int[] cellXY, int spanX, int spanY, boolean clear) {
-            final ArrayList<VacantCell> list = vacantCells;
-            final int count = list.size();
-
             boolean found = false;
 
             if (this.spanX >= spanX && this.spanY >= spanY) {
@@ -1040,26 +1233,10 @@ out:            for (int i = x; i < x + spanX - 1 && x < xCount; i++) {
                 found = true;
             }
 
-            // Look for an exact match first
-            for (int i = 0; i < count; i++) {
-                VacantCell cell = list.get(i);
-                if (cell.spanX == spanX && cell.spanY == spanY) {
-                    cellXY[0] = cell.cellX;
-                    cellXY[1] = cell.cellY;
-                    found = true;
-                    break;
-                }
-            }
-
-            // Look for the first cell large enough
-            for (int i = 0; i < count; i++) {
-                VacantCell cell = list.get(i);
-                if (cell.spanX >= spanX && cell.spanY >= spanY) {
-                    cellXY[0] = cell.cellX;
-                    cellXY[1] = cell.cellY;
-                    found = true;
-                    break;
-                }
+            // The vacant areas found around a touched cell all contain it,
+            // keep the item over that cell
+            if (VacancyEngine.findFirstFit(vacantCells, spanX, spanY, cellX, cellY, cellXY)) {
+                found = true;
             }
 
             if (clear) clearVacantCells();
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import static android.util.Log.w;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Writes the changes of the existing favorites to the database behind the
+ * UI, on a background thread. The model is updated first and stays the
+ * reference, the rows catch up a moment later.
+ *
+ * The pending writes are keyed by item id: the moves and updates of an item
+ * are merged into a single update, or into its pending insert, and deleting
+ * an item drops its pending update. The writes are applied in the order they were last changed.
+ *
+ * The pending writes are applied as one {@link FavoritesBatch}, in a single
+ * transaction. Only one thread writes at a time. Code reading the favorites
+ * back from the database calls {@link #flush()} first to see the pending
+ * writes. If a batch is rolled back, the desktop is reloaded from the
+ * database.
+ *
+ * All methods are thread-safe.
+ */
+final class DatabaseWriter {
+    // Time during which the writes are gathered before being applied, in ms
+    private static final int FLUSH_DELAY = 200;
+
+    private static final int WRITE_UPDATE = 0;
+    private static final int WRITE_DELETE = 1;
+    private static final int WRITE_DELETE_FOLDER = 2;
+    private static final int WRITE_INSERT = 3;
+
+    private static final class Write {
+        final long id;
+        int type;
+        ContentValues values;
+        boolean notify;
+
+        Write(long id, int type, ContentValues values) {
+            this.id = id;
+            this.type = type;
+            this.values = values;
+        }
+    }
+
+    private final LinkedHashMap<Long, Write> mPending = new LinkedHashMap<Long, Write>();
+    // Held while writing, the writes of a flush are applied before the next one
+    private final Object mWriteLock = new Object();
+
+    private ContentResolver mResolver;
+    private Handler mHandler;
+    private boolean mScheduled;
+
+    private final Runnable mFlusher = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Inserts a favorite with the specified values, which hold the id
+     * allocated with {@link LauncherProvider#generateNewId()}.
+     */
+    void insert(Context context, long id, ContentValues values, boolean notify) {
+        synchronized (this) {
+            final Write write = new Write(id, WRITE_INSERT, new ContentValues(values));
+            write.notify = notify;
+            mPending.remove(id);
+            mPending.put(id, write);
+        }
+        schedule(context);
+    }
+
+    /**
+     * Updates the specified columns of the favorite of the specified id.
+     */
+    void update(Context context, long id, ContentValues values) {
+        synchronized (this) {
+            Write write = mPending.remove(id);
+            if (write == null) {
+                write = new Write(id, WRITE_UPDATE, new ContentValues(values));
+            } else if (write.type == WRITE_UPDATE || write.type == WRITE_INSERT) {
+                // Still written as a single insert or update
+                write.values.putAll(values);
+            } else {
+                // The row is about to be deleted
+                mPending.put(id, write);
+                return;
+            }
+            mPending.put(id, write);
+        }
+        schedule(context);
+    }
+
+    /**
+     * Deletes the favorite of the specified id and, for a folder, the
+     * favorites it contains.
+     */
+    void delete(Context context, long id, boolean folder) {
+        synchronized (this) {
+            Write write = mPending.remove(id);
+            if (write == null) {
+                write = new Write(id, WRITE_DELETE, null);
+            }
+            write.type = folder ? WRITE_DELETE_FOLDER : WRITE_DELETE;
+            write.values = null;
+            mPending.put(id, write);
+        }
+        schedule(context);
+    }
+
+    /**
+     * Applies the pending writes, on the calling thread. Returns once they
+     * are all in the database, including the ones another thread was
+     * applying.
+     */
+    void flush() {
+        synchronized (mWriteLock) {
+            final ArrayList<Write> writes;
+            final ContentResolver resolver;
+            synchronized (this) {
+                mScheduled = false;
+                if (mPending.isEmpty()) return;
+                writes = new ArrayList<Write>(mPending.values());
+                mPending.clear();
+                resolver = mResolver;
+            }
+
+            final FavoritesBatch batch = new FavoritesBatch();
+            final int count = writes.size();
+            for (int i = 0; i < count; i++) {
+                final Write write = writes.get(i);
+                switch (write.type) {
+                    case WRITE_INSERT:
+                        batch.insert(write.values, write.notify);
+                        break;
+                    case WRITE_UPDATE:
+                        batch.update(write.id, write.values, false);
+                        break;
+                    case WRITE_DELETE:
+                        batch.delete(write.id, false);
+                        break;
+                    case WRITE_DELETE_FOLDER:
+                        batch.delete(write.id, false);
+                        batch.delete(LauncherSettings.Favorites.CONTAINER + "=" + write.id, true);
+                        break;
+                }
+            }
+
+            if (!batch.apply(resolver)) {
+                w(Launcher.LOG_TAG, "Could not write " + count + " changes of the favorites");
+                // The model no longer matches the database, reload it from there
+                LauncherProvider.recordChangeAll();
+                resolver.notifyChange(LauncherSettings.Favorites.CONTENT_URI, null);
+            }
+        }
+    }
+
+    private synchronized void schedule(Context context) {
+        if (mResolver == null) {
+            mResolver = context.getApplicationContext().getContentResolver();
+        }
+        if (mHandler == null) {
+            final HandlerThread thread = new HandlerThread("Launcher database writer",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postDelayed(mFlusher, FLUSH_DELAY);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+/**
+ * Cache of the icons derived from the icons of the items, such as the
+ * reflections shown in the dock and the scaled icons of the action buttons.
+ *
+ * Derived icons are keyed by the identity of their source icon, or by the id
+ * of their source resource, and by the effect applied. An item whose icon
+ * changes gets a new source icon, and the entries of the old one go away
+ * with it.
+ *
+ * Every call returns a new drawable sharing the cached bitmap. All methods
+ * are thread-safe, the derived icons can be computed on a loader thread.
+ */
+final class DerivedIconCache {
+    static final int EFFECT_REFLECTION = 0;
+    static final int EFFECT_SCALED = 1;
+    static final int EFFECT_SCALED_TINTED = 2;
+    private static final int EFFECT_COUNT = 3;
+
+    private final WeakHashMap<Drawable, Bitmap[]> mIcons = new WeakHashMap<Drawable, Bitmap[]>();
+    private final HashMap<Integer, Bitmap[]> mResources = new HashMap<Integer, Bitmap[]>();
+
+    /**
+     * Returns the specified effect applied to the specified icon.
+     */
+    Drawable get(Drawable source, int effect, Context context) {
+        Bitmap bitmap;
+        synchronized (this) {
+            final Bitmap[] derived = mIcons.get(source);
+            bitmap = derived != null ? derived[effect] : null;
+        }
+
+        if (bitmap == null) {
+            bitmap = apply(source, effect, context);
+            synchronized (this) {
+                Bitmap[] derived = mIcons.get(source);
+                if (derived == null) {
+                    derived = new Bitmap[EFFECT_COUNT];
+                    mIcons.put(source, derived);
+                }
+                if (derived[effect] == null) {
+                    derived[effect] = bitmap;
+                } else {
+                    bitmap = derived[effect];
+                }
+            }
+        }
+
+        return new FastBitmapDrawable(bitmap);
+    }
+
+    /**
+     * Returns the specified effect applied to the specified drawable resource.
+     */
+    Drawable get(int resourceId, int effect, Context context) {
+        final Integer key = resourceId;
+        Bitmap bitmap;
+        synchronized (this) {
+            final Bitmap[] derived = mResources.get(key);
+            bitmap = derived != null ? derived[effect] : null;
+        }
+
+        if (bitmap == null) {
+            bitmap = apply(context.getResources().getDrawable(resourceId), effect, context);
+            synchronized (this) {
+                Bitmap[] derived = mResources.get(key);
+                if (derived == null) {
+                    derived = new Bitmap[EFFECT_COUNT];
+                    mResources.put(key, derived);
+                }
+                if (derived[effect] == null) {
+                    derived[effect] = bitmap;
+                } else {
+                    bitmap = derived[effect];
+                }
+            }
+        }
+
+        return new FastBitmapDrawable(bitmap);
+    }
+
+    synchronized void clear() {
+        mIcons.clear();
+        mResources.clear();
+    }
+
+    private static Bitmap apply(Drawable source, int effect, Context context) {
+        final Drawable derived;
+        // The effects change the bounds of the source
+        synchronized (source) {
+            switch (effect) {
+                case EFFECT_REFLECTION:
+                    derived = Utilities.drawReflection(source, context);
+                    break;
+                case EFFECT_SCALED:
+                    derived = Utilities.scaledDrawable(source, context, false);
+                    break;
+                case EFFECT_SCALED_TINTED:
+                    derived = Utilities.scaledDrawable(source, context, true);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown effect: " + effect);
+            }
+        }
+        return ((FastBitmapDrawable) derived).getBitmap();
+    }
+}
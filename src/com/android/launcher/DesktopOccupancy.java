@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The cells occupied by the items of the desktop, per screen, kept in memory
+ * so that finding room for a new item does not query the database.
+ *
+ * The cells are described like in {@link CellLayout}: one long per row with
+ * one bit per column. Items can overlap, the number of items covering each
+ * cell is counted and a bit is set while its count is positive. The cells
+ * covered by each item are recorded by id, the item can have moved or
+ * changed container when it is updated.
+ *
+ * All methods are thread-safe.
+ */
+final class DesktopOccupancy {
+    private static final String[] PROJECTION = new String[] {
+        LauncherSettings.Favorites._ID,
+        LauncherSettings.Favorites.SCREEN,
+        LauncherSettings.Favorites.CELLX,
+        LauncherSettings.Favorites.CELLY,
+        LauncherSettings.Favorites.SPANX,
+        LauncherSettings.Favorites.SPANY
+    };
+
+    // Indexes of the fields of a footprint
+    private static final int SCREEN = 0;
+    private static final int CELL_X = 1;
+    private static final int CELL_Y = 2;
+    private static final int SPAN_X = 3;
+    private static final int SPAN_Y = 4;
+
+    private final int mCountX;
+    private final int mCountY;
+
+    private final HashMap<Long, int[]> mFootprints = new HashMap<Long, int[]>();
+    private final ArrayList<long[]> mRows = new ArrayList<long[]>();
+    private final ArrayList<int[]> mCounts = new ArrayList<int[]>();
+    private boolean mLoaded;
+
+    DesktopOccupancy(int countX, int countY) {
+        mCountX = countX;
+        mCountY = countY;
+    }
+
+    int getCountX() {
+        return mCountX;
+    }
+
+    int getCountY() {
+        return mCountY;
+    }
+
+    synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Loads the cells of the desktop items from the database, with a single
+     * query, unless they are known already.
+     */
+    synchronized void ensureLoaded(ContentResolver resolver) {
+        if (mLoaded) return;
+
+        clear();
+        final Cursor c = resolver.query(LauncherSettings.Favorites.CONTENT_URI, PROJECTION,
+                LauncherSettings.Favorites.CONTAINER + "=?",
+                new String[] { String.valueOf(LauncherSettings.Favorites.CONTAINER_DESKTOP) },
+                null);
+        if (c == null) return;
+
+        try {
+            while (c.moveToNext()) {
+                mark(c.getLong(0), c.getInt(1), c.getInt(2), c.getInt(3), c.getInt(4),
+                        c.getInt(5));
+            }
+        } finally {
+            c.close();
+        }
+        mLoaded = true;
+    }
+
+    /**
+     * Replaces the cells with the ones of the specified items, freshly loaded
+     * by the model.
+     */
+    synchronized void reset(ArrayList<ItemInfo> items,
+            ArrayList<LauncherAppWidgetInfo> appWidgets) {
+        clear();
+        int count = items.size();
+        for (int i = 0; i < count; i++) {
+            mark(items.get(i));
+        }
+        count = appWidgets.size();
+        for (int i = 0; i < count; i++) {
+            mark(appWidgets.get(i));
+        }
+        mLoaded = true;
+    }
+
+    /**
+     * Records the current cells of the specified item, which may have been
+     * added, moved, resized or taken off the desktop.
+     */
+    synchronized void update(ItemInfo item) {
+        if (item.id == ItemInfo.NO_ID) return;
+        unmark(item.id);
+        mark(item);
+    }
+
+    /**
+     * Forgets the cells, they are read from the database again on the next
+     * use. Used after items were added without their id being known.
+     */
+    synchronized void invalidate() {
+        mLoaded = false;
+    }
+
+    /**
+     * Frees the cells of the item of the specified id.
+     */
+    synchronized void remove(long id) {
+        unmark(id);
+    }
+
+    /**
+     * Returns a copy of the occupied cells of the specified screen, indexed by
+     * row with one bit per column.
+     */
+    synchronized long[] getOccupiedRows(int screen) {
+        final long[] occupied = new long[mCountY];
+        if (screen >= 0 && screen < mRows.size()) {
+            System.arraycopy(mRows.get(screen), 0, occupied, 0, mCountY);
+        }
+        return occupied;
+    }
+
+    private void clear() {
+        mFootprints.clear();
+        mRows.clear();
+        mCounts.clear();
+        mLoaded = false;
+    }
+
+    private void mark(ItemInfo item) {
+        if (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP) return;
+        mark(item.id, item.screen, item.cellX, item.cellY, item.spanX, item.spanY);
+    }
+
+    private void mark(long id, int screen, int cellX, int cellY, int spanX, int spanY) {
+        if (id == ItemInfo.NO_ID || screen < 0) return;
+
+        mFootprints.put(id, new int[] { screen, cellX, cellY, spanX, spanY });
+        updateCounts(screen, cellX, cellY, spanX, spanY, 1);
+    }
+
+    private void unmark(long id) {
+        final int[] footprint = mFootprints.remove(id);
+        if (footprint == null) return;
+
+        updateCounts(footprint[SCREEN], footprint[CELL_X], footprint[CELL_Y],
+                footprint[SPAN_X], footprint[SPAN_Y], -1);
+    }
+
+    private void updateCounts(int screen, int cellX, int cellY, int spanX, int spanY,
+            int delta) {
+        while (mRows.size() <= screen) {
+            mRows.add(new long[mCountY]);
+            mCounts.add(new int[mCountX * mCountY]);
+        }
+
+        final long[] rows = mRows.get(screen);
+        final int[] counts = mCounts.get(screen);
+        final int right = Math.min(cellX + spanX, mCountX);
+        final int bottom = Math.min(cellY + spanY, mCountY);
+        for (int y = Math.max(cellY, 0); y < bottom; y++) {
+            for (int x = Math.max(cellX, 0); x < right; x++) {
+                final int count = counts[y * mCountX + x] += delta;
+                if (count > 0) {
+                    rows[y] |= 1L << x;
+                } else {
+                    rows[y] &= ~(1L << x);
+                }
+            }
+        }
+    }
+}
@@ -24,14 +24,66 @@ import android.graphics.ColorFilter;
 
 class FastBitmapDrawable extends Drawable {
     private Bitmap mBitmap;
+    // Set instead of the bitmap when the drawable is a view into an atlas
+    private IconAtlas.Slot mSlot;
+    // True when this drawable is the only user of its bitmap
+    private boolean mRecyclable;
 
     FastBitmapDrawable(Bitmap b) {
         mBitmap = b;
     }
 
+    /**
+     * @param recyclable True if the bitmap is only used by this drawable and
+     *        can be returned to the {@link BitmapPool} once the drawable is released.
+     */
+    FastBitmapDrawable(Bitmap b, boolean recyclable) {
+        mBitmap = b;
+        mRecyclable = recyclable;
+    }
+
+    /**
+     * Creates a drawable showing the specified cell of an {@link IconAtlas}.
+     * The cell is freed when the drawable is released.
+     */
+    FastBitmapDrawable(IconAtlas.Slot slot) {
+        mSlot = slot;
+        mRecyclable = true;
+    }
+
+    /**
+     * Indicates that this drawable is used by several items and that its
+     * bitmap must not be recycled.
+     */
+    void setShared() {
+        mRecyclable = false;
+    }
+
+    /**
+     * Returns the bitmap of the specified drawable to the {@link BitmapPool}
+     * if nothing else uses it. The drawable must not be drawn anymore.
+     */
+    static void release(Drawable drawable) {
+        if (drawable instanceof FastBitmapDrawable) {
+            final FastBitmapDrawable fast = (FastBitmapDrawable) drawable;
+            if (fast.mRecyclable) {
+                fast.mRecyclable = false;
+                if (fast.mSlot != null) {
+                    fast.mSlot.atlas.free(fast.mSlot);
+                } else {
+                    BitmapPool.release(fast.mBitmap);
+                }
+            }
+        }
+    }
+
     @Override
     public void draw(Canvas canvas) {
-        canvas.drawBitmap(mBitmap, 0.0f, 0.0f, null);
+        if (mSlot != null) {
+            mSlot.atlas.draw(mSlot, canvas);
+        } else {
+            canvas.drawBitmap(mBitmap, 0.0f, 0.0f, null);
+        }
     }
 
     @Override
@@ -49,25 +101,44 @@ class FastBitmapDrawable extends Drawable {
 
     @Override
     public int getIntrinsicWidth() {
-        return mBitmap.getWidth();
+        return mSlot != null ? mSlot.atlas.getCellWidth() : mBitmap.getWidth();
     }
 
     @Override
     public int getIntrinsicHeight() {
-        return mBitmap.getHeight();
+        return mSlot != null ? mSlot.atlas.getCellHeight() : mBitmap.getHeight();
     }
 
     @Override
     public int getMinimumWidth() {
-        return mBitmap.getWidth();
+        return getIntrinsicWidth();
     }
 
     @Override
     public int getMinimumHeight() {
-        return mBitmap.getHeight();
+        return getIntrinsicHeight();
     }
 
+    /**
+     * Returns the bitmap drawn by this drawable. When the drawable is a view
+     * into an atlas, the returned bitmap is a copy of its cell.
+     */
     public Bitmap getBitmap() {
-        return mBitmap;
+        return mSlot != null ? mSlot.atlas.copy(mSlot) : mBitmap;
+    }
+
+    /**
+     * Returns true if this drawable is a view into an {@link IconAtlas}.
+     */
+    boolean isAtlasView() {
+        return mSlot != null;
+    }
+
+    /**
+     * Returns the number of bytes used by the pixels drawn by this drawable.
+     */
+    int getByteCount() {
+        if (mSlot != null) return getIntrinsicWidth() * getIntrinsicHeight() * 4;
+        return mBitmap.getRowBytes() * mBitmap.getHeight();
     }
 }
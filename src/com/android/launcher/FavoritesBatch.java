@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+
+import java.util.ArrayList;
+
+/**
+ * Writes to the favorites gathered to be applied by {@link LauncherProvider}
+ * in a single transaction: either all of them are written or none is. The
+ * notifying writes are reported with a single notification, the desktop
+ * reloads once for the whole batch.
+ */
+final class FavoritesBatch {
+    private final ArrayList<ContentValues> mOperations = new ArrayList<ContentValues>();
+    private long[] mInsertedIds;
+
+    /**
+     * Inserts a favorite with the specified values.
+     */
+    void insert(ContentValues values, boolean notify) {
+        add(LauncherProvider.BATCH_INSERT, values, null, notify);
+    }
+
+    /**
+     * Updates the specified columns of the favorite of the specified id.
+     */
+    void update(long id, ContentValues values, boolean notify) {
+        add(LauncherProvider.BATCH_UPDATE, values, LauncherSettings.Favorites._ID + "=" + id,
+                notify);
+    }
+
+    /**
+     * Deletes the favorite of the specified id.
+     */
+    void delete(long id, boolean notify) {
+        delete(LauncherSettings.Favorites._ID + "=" + id, notify);
+    }
+
+    /**
+     * Deletes the favorites matching the specified selection.
+     */
+    void delete(String selection, boolean notify) {
+        add(LauncherProvider.BATCH_DELETE, null, selection, notify);
+    }
+
+    int size() {
+        return mOperations.size();
+    }
+
+    /**
+     * Returns the ids of the favorites inserted by the last successful
+     * {@link #apply(ContentResolver)}, in the order of the inserts, or null
+     * if they are unknown.
+     */
+    long[] getInsertedIds() {
+        return mInsertedIds;
+    }
+
+    /**
+     * Applies the operations and clears the batch.
+     *
+     * @return False if the batch was rolled back.
+     */
+    boolean apply(ContentResolver resolver) {
+        mInsertedIds = null;
+        final int count = mOperations.size();
+        if (count == 0) return true;
+
+        final ContentValues[] operations = mOperations.toArray(new ContentValues[count]);
+        mOperations.clear();
+        if (resolver.bulkInsert(LauncherProvider.CONTENT_BATCH_URI, operations) != count) {
+            return false;
+        }
+        mInsertedIds = LauncherProvider.takeInsertedIds();
+        return true;
+    }
+
+    private void add(int operation, ContentValues values, String selection, boolean notify) {
+        final ContentValues row = values != null ? new ContentValues(values) : new ContentValues();
+        row.put(LauncherProvider.BATCH_OPERATION, operation);
+        if (selection != null) row.put(LauncherProvider.BATCH_SELECTION, selection);
+        row.put(LauncherProvider.BATCH_NOTIFY, notify);
+        mOperations.add(row);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+
+/**
+ * Packs the thumbnails of the applications into a few large bitmaps, the
+ * pages of the atlas. Each thumbnail occupies a cell of a page and is drawn
+ * through a {@link FastBitmapDrawable} created with its {@link Slot}.
+ *
+ * The cells are kept contiguous: when a slot is freed, the last slot of the
+ * atlas is moved into its cell and the pages left empty are dropped.
+ *
+ * All methods are thread-safe.
+ */
+final class IconAtlas {
+    // Size of the pages, in pixels
+    private static final int PAGE_SIZE = 512;
+
+    /**
+     * The cell of a thumbnail in the atlas. Its position changes when the
+     * atlas is compacted.
+     */
+    static final class Slot {
+        final IconAtlas atlas;
+        int index;
+
+        Slot(IconAtlas atlas, int index) {
+            this.atlas = atlas;
+            this.index = index;
+        }
+    }
+
+    private final int mCellWidth;
+    private final int mCellHeight;
+    private final int mColumns;
+    private final int mCellsPerPage;
+
+    private final ArrayList<Bitmap> mPages = new ArrayList<Bitmap>();
+    private final ArrayList<Slot> mSlots = new ArrayList<Slot>();
+
+    private final Canvas mCanvas = new Canvas();
+    private final Paint mClearPaint = new Paint();
+    private final Rect mSrc = new Rect();
+    private final Rect mDst = new Rect();
+
+    /**
+     * Creates an atlas of cells of the specified size.
+     */
+    IconAtlas(int cellWidth, int cellHeight) {
+        mCellWidth = cellWidth;
+        mCellHeight = cellHeight;
+        mColumns = Math.max(1, PAGE_SIZE / cellWidth);
+        mCellsPerPage = mColumns * Math.max(1, PAGE_SIZE / cellHeight);
+        mClearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+    }
+
+    int getCellWidth() {
+        return mCellWidth;
+    }
+
+    int getCellHeight() {
+        return mCellHeight;
+    }
+
+    /**
+     * Copies the specified thumbnail into a new cell of the atlas.
+     *
+     * @return The slot of the thumbnail, or null if the thumbnail does not
+     *         have the size of the cells.
+     */
+    synchronized Slot add(Bitmap thumbnail) {
+        if (thumbnail.getWidth() != mCellWidth || thumbnail.getHeight() != mCellHeight) {
+            return null;
+        }
+
+        final int index = mSlots.size();
+        final int page = index / mCellsPerPage;
+        if (page == mPages.size()) {
+            mPages.add(Bitmap.createBitmap(mColumns * mCellWidth,
+                    (mCellsPerPage / mColumns) * mCellHeight, Bitmap.Config.ARGB_8888));
+        }
+
+        final Slot slot = new Slot(this, index);
+        mSlots.add(slot);
+
+        setCell(index);
+        final Canvas canvas = mCanvas;
+        canvas.setBitmap(mPages.get(page));
+        canvas.drawRect(mDst, mClearPaint);
+        canvas.drawBitmap(thumbnail, mDst.left, mDst.top, null);
+
+        return slot;
+    }
+
+    /**
+     * Frees the cell of the specified slot, which must not be drawn anymore.
+     */
+    synchronized void free(Slot slot) {
+        final int index = slot.index;
+        if (index < 0 || index >= mSlots.size() || mSlots.get(index) != slot) return;
+        slot.index = -1;
+
+        final int lastIndex = mSlots.size() - 1;
+        final Slot last = mSlots.remove(lastIndex);
+        if (last != slot) {
+            // Move the last thumbnail into the hole to keep the cells contiguous
+            setCell(lastIndex);
+            final Bitmap lastPage = mPages.get(lastIndex / mCellsPerPage);
+            final Bitmap moved = Bitmap.createBitmap(lastPage, mDst.left, mDst.top,
+                    mCellWidth, mCellHeight);
+
+            setCell(index);
+            final Canvas canvas = mCanvas;
+            canvas.setBitmap(mPages.get(index / mCellsPerPage));
+            canvas.drawRect(mDst, mClearPaint);
+            canvas.drawBitmap(moved, mDst.left, mDst.top, null);
+            moved.recycle();
+
+            last.index = index;
+            mSlots.set(index, last);
+        }
+
+        // Drop the pages left empty, the drawables of freed slots do not draw them
+        final int pages = (mSlots.size() + mCellsPerPage - 1) / mCellsPerPage;
+        while (mPages.size() > pages) {
+            mPages.remove(mPages.size() - 1);
+        }
+    }
+
+    /**
+     * Draws the thumbnail of the specified slot at the origin of the canvas.
+     */
+    synchronized void draw(Slot slot, Canvas canvas) {
+        final int index = slot.index;
+        if (index < 0) return;
+
+        setCell(index);
+        mSrc.set(mDst);
+        mDst.set(0, 0, mCellWidth, mCellHeight);
+        canvas.drawBitmap(mPages.get(index / mCellsPerPage), mSrc, mDst, null);
+    }
+
+    /**
+     * Returns a copy of the thumbnail of the specified slot.
+     */
+    synchronized Bitmap copy(Slot slot) {
+        final int index = slot.index;
+        if (index < 0) {
+            return Bitmap.createBitmap(mCellWidth, mCellHeight, Bitmap.Config.ARGB_8888);
+        }
+
+        setCell(index);
+        return Bitmap.createBitmap(mPages.get(index / mCellsPerPage), mDst.left, mDst.top,
+                mCellWidth, mCellHeight);
+    }
+
+    /**
+     * Returns the number of thumbnails in the atlas.
+     */
+    synchronized int size() {
+        return mSlots.size();
+    }
+
+    private void setCell(int index) {
+        final int cell = index % mCellsPerPage;
+        final int x = (cell % mColumns) * mCellWidth;
+        final int y = (cell / mColumns) * mCellHeight;
+        mDst.set(x, y, x + mCellWidth, y + mCellHeight);
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PaintFlagsDrawFilter;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.PaintDrawable;
+import android.util.DisplayMetrics;
+
+/**
+ * Renders the thumbnails of the icons shown by the launcher.
+ *
+ * A renderer holds no mutable state shared between threads: every thread
+ * draws with its own canvas and paint, so thumbnails can be created from
+ * several threads at once and the same input always gives the same output.
+ * Drawing a drawable temporarily changes its bounds, the renderer holds the
+ * lock of the drawable while doing so.
+ *
+ * Thumbnails are drawn into bitmaps obtained from the {@link BitmapPool}.
+ *
+ * In the low memory mode, the thumbnails that do not need a full alpha
+ * channel can be converted to a compact format, see {@link #compact}.
+ */
+final class IconRenderer {
+    /** The alpha of the thumbnail has not been checked. */
+    static final int ALPHA_UNKNOWN = 0;
+    /** Every pixel of the thumbnail is opaque. */
+    static final int ALPHA_OPAQUE = 1;
+    /** The pixels are either opaque or transparent, except for a few edges. */
+    static final int ALPHA_MOSTLY_OPAQUE = 2;
+    /** The thumbnail has shadows, glows or other translucent areas. */
+    static final int ALPHA_TRANSLUCENT = 3;
+
+    // A mostly opaque thumbnail has at most one translucent pixel out of 16 visible ones
+    private static final int MAX_TRANSLUCENT_FRACTION = 16;
+
+    private static IconRenderer sInstance;
+
+    private final int mIconWidth;
+    private final int mIconHeight;
+    private final DisplayMetrics mDisplayMetrics;
+    private final boolean mCompact;
+
+    /**
+     * Drawing state used to create thumbnails. Each thread gets its own.
+     */
+    private static final class RenderState {
+        final Paint paint = new Paint();
+        final Rect bounds = new Rect();
+        final Rect oldBounds = new Rect();
+        final Canvas canvas = new Canvas();
+        // Draws with dithering, used to convert thumbnails to compact formats
+        final Canvas compactCanvas = new Canvas();
+        final Paint compactPaint = new Paint(Paint.DITHER_FLAG);
+        int[] row;
+
+        RenderState() {
+            canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
+                    Paint.FILTER_BITMAP_FLAG));
+        }
+    }
+
+    private final ThreadLocal<RenderState> mRenderState = new ThreadLocal<RenderState>() {
+        @Override
+        protected RenderState initialValue() {
+            return new RenderState();
+        }
+    };
+
+    /**
+     * Creates a renderer of thumbnails of the specified size.
+     *
+     * @param iconWidth The width of the thumbnails.
+     * @param iconHeight The height of the thumbnails.
+     * @param displayMetrics The metrics used to scale the bitmaps without density.
+     * @param compact True if the thumbnails can be stored in compact formats.
+     */
+    IconRenderer(int iconWidth, int iconHeight, DisplayMetrics displayMetrics, boolean compact) {
+        mIconWidth = iconWidth;
+        mIconHeight = iconHeight;
+        mDisplayMetrics = displayMetrics;
+        mCompact = compact;
+    }
+
+    /**
+     * Returns the renderer of the thumbnails of the size defined by the
+     * dimension android.R.dimen.app_icon_size. The low memory mode is read
+     * once, changing it restarts the launcher.
+     */
+    static synchronized IconRenderer getInstance(Context context) {
+        if (sInstance == null) {
+            final Resources resources = context.getResources();
+            final int size = (int) resources.getDimension(android.R.dimen.app_icon_size);
+            sInstance = new IconRenderer(size, size, resources.getDisplayMetrics(),
+                    AlmostNexusSettingsHelper.getLowMemoryIcons(context));
+        }
+        return sInstance;
+    }
+
+    int getIconWidth() {
+        return mIconWidth;
+    }
+
+    int getIconHeight() {
+        return mIconHeight;
+    }
+
+    /**
+     * Returns true if the thumbnails can be stored in compact formats.
+     */
+    boolean isCompact() {
+        return mCompact;
+    }
+
+    /**
+     * Returns a Drawable representing the thumbnail of the specified Drawable.
+     *
+     * @param icon The icon to get a thumbnail of.
+     *
+     * @return A thumbnail for the specified icon or the icon itself if the
+     *         thumbnail could not be created.
+     */
+    Drawable createIconThumbnail(Drawable icon) {
+        int width = mIconWidth;
+        int height = mIconHeight;
+        if (width <= 0 || height <= 0) return icon;
+
+        synchronized (icon) {
+            if (icon instanceof PaintDrawable) {
+                PaintDrawable painter = (PaintDrawable) icon;
+                painter.setIntrinsicWidth(width);
+                painter.setIntrinsicHeight(height);
+            } else if (icon instanceof BitmapDrawable) {
+                // Ensure the bitmap has a density.
+                BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
+                Bitmap bitmap = bitmapDrawable.getBitmap();
+                if (bitmap.getDensity() == Bitmap.DENSITY_NONE) {
+                    bitmapDrawable.setTargetDensity(mDisplayMetrics);
+                }
+            }
+            final int iconWidth = icon.getIntrinsicWidth();
+            final int iconHeight = icon.getIntrinsicHeight();
+
+            if (width < iconWidth || height < iconHeight) {
+                final float ratio = (float) iconWidth / iconHeight;
+
+                if (iconWidth > iconHeight) {
+                    height = (int) (width / ratio);
+                } else if (iconHeight > iconWidth) {
+                    width = (int) (height * ratio);
+                }
+
+                final Bitmap.Config c = icon.getOpacity() != PixelFormat.OPAQUE ?
+                            Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+                final int x = (mIconWidth - width) / 2;
+                final int y = (mIconHeight - height) / 2;
+                return new FastBitmapDrawable(draw(icon, c, x, y, width, height), true);
+            } else if (iconWidth < width && iconHeight < height) {
+                final int x = (width - iconWidth) / 2;
+                final int y = (height - iconHeight) / 2;
+                return new FastBitmapDrawable(draw(icon, Bitmap.Config.ARGB_8888,
+                        x, y, iconWidth, iconHeight), true);
+            }
+        }
+
+        return icon;
+    }
+
+    /**
+     * Returns a Bitmap of the size of the thumbnails holding the thumbnail of
+     * the specified Drawable. Unlike {@link #createIconThumbnail(Drawable)}
+     * this method never returns the icon itself, which makes its result
+     * suitable for caching.
+     *
+     * @param icon The icon to get a thumbnail of.
+     *
+     * @return A bitmap holding the thumbnail of the specified icon.
+     */
+    Bitmap createIconBitmap(Drawable icon) {
+        final Drawable thumbnail = createIconThumbnail(icon);
+        if (thumbnail instanceof FastBitmapDrawable) {
+            final FastBitmapDrawable fast = (FastBitmapDrawable) thumbnail;
+            // The bitmap of the icon itself is now used by the caller as well,
+            // unless the icon lives in an atlas and the caller gets a copy
+            if (thumbnail == icon && !fast.isAtlasView()) fast.setShared();
+            return fast.getBitmap();
+        }
+
+        // The icon already had the right size, draw it as is
+        final int width = mIconWidth;
+        final int height = mIconHeight;
+        synchronized (thumbnail) {
+            final Bitmap.Config c = thumbnail.getOpacity() != PixelFormat.OPAQUE ?
+                    Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
+            final int iconWidth = thumbnail.getIntrinsicWidth() > 0 ?
+                    thumbnail.getIntrinsicWidth() : width;
+            final int iconHeight = thumbnail.getIntrinsicHeight() > 0 ?
+                    thumbnail.getIntrinsicHeight() : height;
+            final int x = (width - iconWidth) / 2;
+            final int y = (height - iconHeight) / 2;
+            return draw(thumbnail, c, x, y, iconWidth, iconHeight);
+        }
+    }
+
+    /**
+     * Returns a Bitmap representing the thumbnail of the specified Bitmap.
+     *
+     * @param bitmap The bitmap to get a thumbnail of.
+     *
+     * @return A thumbnail for the specified bitmap or the bitmap itself if the
+     *         thumbnail could not be created.
+     */
+    Bitmap createBitmapThumbnail(Bitmap bitmap) {
+        int width = mIconWidth;
+        int height = mIconHeight;
+        if (width <= 0 || height <= 0) return bitmap;
+
+        final int bitmapWidth = bitmap.getWidth();
+        final int bitmapHeight = bitmap.getHeight();
+
+        final RenderState state = mRenderState.get();
+        if (width < bitmapWidth || height < bitmapHeight) {
+            final float ratio = (float) bitmapWidth / bitmapHeight;
+
+            if (bitmapWidth > bitmapHeight) {
+                height = (int) (width / ratio);
+            } else if (bitmapHeight > bitmapWidth) {
+                width = (int) (height * ratio);
+            }
+
+            final Bitmap.Config c = (width == mIconWidth && height == mIconHeight) ?
+                    bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+            final Bitmap thumb = BitmapPool.obtain(mIconWidth, mIconHeight, c);
+            final Canvas canvas = state.canvas;
+            final Paint paint = state.paint;
+            canvas.setBitmap(thumb);
+            paint.setDither(false);
+            paint.setFilterBitmap(true);
+            state.bounds.set((mIconWidth - width) / 2, (mIconHeight - height) / 2, width, height);
+            state.oldBounds.set(0, 0, bitmapWidth, bitmapHeight);
+            canvas.drawBitmap(bitmap, state.oldBounds, state.bounds, paint);
+            return thumb;
+        } else if (bitmapWidth < width || bitmapHeight < height) {
+            final Bitmap thumb = BitmapPool.obtain(mIconWidth, mIconHeight,
+                    Bitmap.Config.ARGB_8888);
+            final Canvas canvas = state.canvas;
+            final Paint paint = state.paint;
+            canvas.setBitmap(thumb);
+            paint.setDither(false);
+            paint.setFilterBitmap(true);
+            canvas.drawBitmap(bitmap, (mIconWidth - bitmapWidth) / 2,
+                    (mIconHeight - bitmapHeight) / 2, paint);
+            return thumb;
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Checks how the specified thumbnail uses its alpha channel. This reads
+     * every pixel, the result is meant to be stored along with the thumbnail.
+     *
+     * @return One of {@link #ALPHA_OPAQUE}, {@link #ALPHA_MOSTLY_OPAQUE} or
+     *         {@link #ALPHA_TRANSLUCENT}.
+     */
+    int classifyAlpha(Bitmap bitmap) {
+        if (!bitmap.hasAlpha()) return ALPHA_OPAQUE;
+
+        final int width = bitmap.getWidth();
+        final int height = bitmap.getHeight();
+
+        final RenderState state = mRenderState.get();
+        if (state.row == null || state.row.length < width) {
+            state.row = new int[width];
+        }
+        final int[] row = state.row;
+
+        int visible = 0;
+        int translucent = 0;
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                final int alpha = row[x] >>> 24;
+                if (alpha != 0) {
+                    visible++;
+                    if (alpha != 0xff) translucent++;
+                }
+            }
+        }
+
+        if (visible == width * height) {
+            return ALPHA_OPAQUE;
+        } else if (translucent * MAX_TRANSLUCENT_FRACTION <= visible) {
+            return ALPHA_MOSTLY_OPAQUE;
+        }
+        return ALPHA_TRANSLUCENT;
+    }
+
+    /**
+     * Returns the configuration a thumbnail with the specified alpha should
+     * be stored in.
+     *
+     * @return The compact configuration or null if the thumbnail must keep
+     *         a full alpha channel or the low memory mode is disabled.
+     */
+    Bitmap.Config getCompactConfig(int alpha) {
+        if (!mCompact) return null;
+
+        switch (alpha) {
+            case ALPHA_OPAQUE:
+                return Bitmap.Config.RGB_565;
+            case ALPHA_MOSTLY_OPAQUE:
+                return Bitmap.Config.ARGB_4444;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the specified thumbnail in the compact configuration matching
+     * its alpha, see {@link #getCompactConfig}. The thumbnail itself is
+     * left untouched.
+     *
+     * @return A new bitmap or the thumbnail itself if it cannot be compacted.
+     */
+    Bitmap compact(Bitmap bitmap, int alpha) {
+        final Bitmap.Config config = getCompactConfig(alpha);
+        if (config == null || config == bitmap.getConfig()) return bitmap;
+
+        final RenderState state = mRenderState.get();
+        final Bitmap compact = BitmapPool.obtain(bitmap.getWidth(), bitmap.getHeight(), config);
+        final Canvas canvas = state.compactCanvas;
+        canvas.setBitmap(compact);
+        canvas.drawBitmap(bitmap, 0, 0, state.compactPaint);
+        return compact;
+    }
+
+    /**
+     * Draws the specified icon at the specified position of a new bitmap of
+     * the size of the thumbnails. The caller must hold the lock of the icon.
+     */
+    private Bitmap draw(Drawable icon, Bitmap.Config config, int x, int y, int width, int height) {
+        final RenderState state = mRenderState.get();
+        final Bitmap thumb = BitmapPool.obtain(mIconWidth, mIconHeight, config);
+        final Canvas canvas = state.canvas;
+        canvas.setBitmap(thumb);
+        // Copy the old bounds to restore them later
+        // If we were to do oldBounds = icon.getBounds(),
+        // the call to setBounds() that follows would
+        // change the same instance and we would lose the
+        // old bounds
+        state.oldBounds.set(icon.getBounds());
+        icon.setBounds(x, y, x + width, y + height);
+        icon.draw(canvas);
+        icon.setBounds(state.oldBounds);
+        return thumb;
+    }
+}
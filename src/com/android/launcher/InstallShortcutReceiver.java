@@ -19,41 +19,86 @@ package com.android.launcher;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ContentResolver;
-import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+
 public class InstallShortcutReceiver extends BroadcastReceiver {
     private static final String ACTION_INSTALL_SHORTCUT =
             "com.android.launcher.action.INSTALL_SHORTCUT";
 
-    private final int[] mCoordinates = new int[2];
+    // Time during which the broadcasts are queued and installed together, in ms
+    private static final int INSTALL_DELAY = 300;
+
+    // The shortcuts waiting to be installed, only touched on the main thread
+    private static final ArrayList<Intent> sPendingInstalls = new ArrayList<Intent>();
+    private static Handler sHandler;
+    private static Context sContext;
+
+    private static final Runnable sInstallPending = new Runnable() {
+        public void run() {
+            final Context context = sContext;
+            sContext = null;
+            final ArrayList<Intent> pending = new ArrayList<Intent>(sPendingInstalls);
+            sPendingInstalls.clear();
+            installShortcuts(context, pending);
+        }
+    };
 
     public void onReceive(Context context, Intent data) {
         if (!ACTION_INSTALL_SHORTCUT.equals(data.getAction())) {
             return;
         }
 
-        int screen = Launcher.getScreen();
+        // Apps and restore tools often send several shortcuts in a row, each
+        // insert would otherwise reload the desktop
+        if (sHandler == null) {
+            sHandler = new Handler(Looper.getMainLooper());
+        }
+        if (sPendingInstalls.isEmpty()) {
+            sContext = context.getApplicationContext();
+            sHandler.postDelayed(sInstallPending, INSTALL_DELAY);
+        }
+        sPendingInstalls.add(data);
 
-        if (!installShortcut(context, data, screen)) {
-            // The target screen is full, let's try the other screens
-            for (int i = 0; i < Launcher.SCREEN_COUNT; i++) {
-                if (i != screen && installShortcut(context, data, i)) break;
-            }
+        // The process can be killed once the broadcast is handled unless the
+        // launcher is in the foreground, install the queued shortcuts now
+        if (!Launcher.isForeground()) {
+            flushPendingInstalls();
         }
     }
 
-    private boolean installShortcut(Context context, Intent data, int screen) {
-        String name = data.getStringExtra(Intent.EXTRA_SHORTCUT_NAME);
-
-        if (findEmptyCell(context, mCoordinates, screen)) {
-            CellLayout.CellInfo cell = new CellLayout.CellInfo();
-            cell.cellX = mCoordinates[0];
-            cell.cellY = mCoordinates[1];
-            cell.screen = screen;
+    /**
+     * Installs the queued shortcuts without waiting for more broadcasts. Must
+     * be invoked on the main thread.
+     */
+    static void flushPendingInstalls() {
+        if (sHandler == null || sPendingInstalls.isEmpty()) return;
+        sHandler.removeCallbacks(sInstallPending);
+        sInstallPending.run();
+    }
 
-            Intent intent = data.getParcelableExtra(Intent.EXTRA_SHORTCUT_INTENT);
+    /**
+     * Places the specified shortcuts, preferably on the current screen, and
+     * adds them to the database at once.
+     */
+    private static void installShortcuts(Context context, ArrayList<Intent> pending) {
+        final int screenCount = Launcher.SCREEN_COUNT;
+        final int screen = Math.max(0, Math.min(Launcher.getScreen(), screenCount - 1));
+        // The occupied cells of each screen, updated as the shortcuts are placed
+        final long[][] occupied = new long[screenCount][];
+        final int[] xy = new int[2];
+
+        final ArrayList<ItemInfo> added = new ArrayList<ItemInfo>();
+        final ArrayList<String> names = new ArrayList<String>();
+        final int count = pending.size();
+        for (int i = 0; i < count; i++) {
+            final Intent data = pending.get(i);
+            final String name = data.getStringExtra(Intent.EXTRA_SHORTCUT_NAME);
+            final Intent intent = data.getParcelableExtra(Intent.EXTRA_SHORTCUT_INTENT);
+            if (intent == null) continue;
 
             if (intent.getAction() == null) {
                 intent.setAction(Intent.ACTION_VIEW);
@@ -62,61 +107,61 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
             // By default, we allow for duplicate entries (located in
             // different places)
             boolean duplicate = data.getBooleanExtra(Launcher.EXTRA_SHORTCUT_DUPLICATE, true);
-            if (duplicate || !LauncherModel.shortcutExists(context, name, intent)) {
-                Launcher.addShortcut(context, data, cell, true);
-                Toast.makeText(context, context.getString(R.string.shortcut_installed, name),
-                        Toast.LENGTH_SHORT).show();
-            } else {
+            if (!duplicate && (isQueued(added, name, intent) ||
+                    LauncherModel.shortcutExists(context, name, intent))) {
                 Toast.makeText(context, context.getString(R.string.shortcut_duplicate, name),
                         Toast.LENGTH_SHORT).show();
+                continue;
+            }
+
+            // Try the current screen first, then the other screens
+            int target = -1;
+            for (int j = 0; j < screenCount && target < 0; j++) {
+                final int candidate = j == 0 ? screen : (j <= screen ? j - 1 : j);
+                if (occupied[candidate] == null) {
+                    occupied[candidate] = LauncherModel.getOccupiedCells(context, candidate);
+                }
+                if (CellLayout.findVacantCell(xy, 1, 1, Launcher.NUMBER_CELLS_X,
+                        Launcher.NUMBER_CELLS_Y, occupied[candidate])) {
+                    target = candidate;
+                }
+            }
+
+            if (target < 0) {
+                Toast.makeText(context, context.getString(R.string.out_of_space),
+                        Toast.LENGTH_SHORT).show();
+                continue;
             }
 
-            return true;
-        } else {
-            Toast.makeText(context, context.getString(R.string.out_of_space),
-                    Toast.LENGTH_SHORT).show();
+            occupied[target][xy[1]] |= 1L << xy[0];
+
+            final ApplicationInfo info = Launcher.infoFromShortcutIntent(context, data);
+            info.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+            info.screen = target;
+            info.cellX = xy[0];
+            info.cellY = xy[1];
+            added.add(info);
+            names.add(name);
         }
 
-        return false;
+        if (added.size() > 0 && LauncherModel.addItemsToDatabase(context, added)) {
+            final int addedCount = names.size();
+            for (int i = 0; i < addedCount; i++) {
+                Toast.makeText(context, context.getString(R.string.shortcut_installed,
+                        names.get(i)), Toast.LENGTH_SHORT).show();
+            }
+        }
     }
 
-    private static boolean findEmptyCell(Context context, int[] xy, int screen) {
-        final int xCount = Launcher.NUMBER_CELLS_X;
-        final int yCount = Launcher.NUMBER_CELLS_Y;
-
-        boolean[][] occupied = new boolean[xCount][yCount];
-
-        final ContentResolver cr = context.getContentResolver();
-        Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI,
-            new String[] { LauncherSettings.Favorites.CELLX, LauncherSettings.Favorites.CELLY,
-                    LauncherSettings.Favorites.SPANX, LauncherSettings.Favorites.SPANY },
-            LauncherSettings.Favorites.SCREEN + "=?",
-            new String[] { String.valueOf(screen) }, null);
-
-        final int cellXIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CELLX);
-        final int cellYIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CELLY);
-        final int spanXIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SPANX);
-        final int spanYIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SPANY);
-
-        try {
-            while (c.moveToNext()) {
-                int cellX = c.getInt(cellXIndex);
-                int cellY = c.getInt(cellYIndex);
-                int spanX = c.getInt(spanXIndex);
-                int spanY = c.getInt(spanYIndex);
-
-                for (int x = cellX; x < cellX + spanX && x < xCount; x++) {
-                    for (int y = cellY; y < cellY + spanY && y < yCount; y++) {
-                        occupied[x][y] = true;
-                    }
-                }
+    private static boolean isQueued(ArrayList<ItemInfo> added, String name, Intent intent) {
+        final int count = added.size();
+        for (int i = 0; i < count; i++) {
+            final ApplicationInfo info = (ApplicationInfo) added.get(i);
+            if (info.intent != null && info.intent.filterEquals(intent) &&
+                    (name == null ? info.title == null : name.equals(info.title))) {
+                return true;
             }
-        } catch (Exception e) {
-            return false;
-        } finally {
-            c.close();
         }
-
-        return CellLayout.findVacantCell(xy, 1, 1, xCount, yCount, occupied);
+        return false;
     }
 }
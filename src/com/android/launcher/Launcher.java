@@ -79,6 +79,7 @@ import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.view.animation.ScaleAnimation;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
 import android.widget.EditText;
 import android.widget.GridView;
 import android.widget.SlidingDrawer;
@@ -95,7 +96,10 @@ import android.appwidget.AppWidgetProviderInfo;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.Set;
 import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -147,6 +151,9 @@ public final class Launcher extends Activity implements View.OnClickListener, On
     private static final int DIALOG_CREATE_SHORTCUT = 1;
     static final int DIALOG_RENAME_FOLDER = 2;
 
+    // Time during which package broadcasts are gathered before being applied
+    private static final long PACKAGE_CHANGES_DELAY = 400;
+
     private static final String PREFERENCES = "launcher.preferences";
     private static final String ALMOSTNEXUS_PREFERENCES = "launcher.preferences.almostnexus";
 
@@ -185,10 +192,22 @@ public final class Launcher extends Activity implements View.OnClickListener, On
 
     private static final Object sLock = new Object();
     private static int sScreen = DEFAULT_SCREN;
+    private static boolean sForeground;
 
     private static WallpaperIntentReceiver sWallpaperReceiver;
 
     private final BroadcastReceiver mApplicationsReceiver = new ApplicationsIntentReceiver();
+    private final Handler mHandler = new Handler();
+
+    // Packages changed since the last time the changes were applied
+    private final HashSet<String> mPendingPackages = new HashSet<String>();
+    private final HashSet<String> mPendingRemovedPackages = new HashSet<String>();
+    private final HashSet<String> mPendingReplacedPackages = new HashSet<String>();
+    private final Runnable mApplyPackageChanges = new Runnable() {
+        public void run() {
+            applyPendingPackageChanges();
+        }
+    };
     private final ContentObserver mObserver = new FavoritesChangeObserver();
     private final ContentObserver mWidgetObserver = new AppWidgetResetObserver();
 
@@ -231,6 +250,10 @@ public final class Launcher extends Activity implements View.OnClickListener, On
     private Bundle mSavedInstanceState;
 
     private DesktopBinder mBinder;
+    // The items bound to the workspace and those whose icons can be released
+    // once the current binding is complete
+    private ArrayList<ItemInfo> mBoundItems;
+    private ArrayList<ItemInfo> mRetiredItems;
 
     private ImageView mPreviousView;
     private ImageView mNextView;
@@ -380,6 +403,15 @@ public final class Launcher extends Activity implements View.OnClickListener, On
         }
     }
 
+    /**
+     * Returns true while a launcher is resumed, see {@link InstallShortcutReceiver}.
+     */
+    static boolean isForeground() {
+        synchronized (sLock) {
+            return sForeground;
+        }
+    }
+
     static void setScreen(int screen) {
         synchronized (sLock) {
             sScreen = screen;
@@ -457,6 +489,9 @@ public final class Launcher extends Activity implements View.OnClickListener, On
     @Override
     protected void onResume() {
         super.onResume();
+        synchronized (sLock) {
+            sForeground = true;
+        }
         if(AlmostNexusSettingsHelper.getDesktopRotation(this)){
 	        this.setRequestedOrientation(
 	        		Settings.System.getInt(this.getContentResolver(), "launcher_orientation", 1) == 0 ?
@@ -537,6 +572,12 @@ public final class Launcher extends Activity implements View.OnClickListener, On
         super.onPause();
         //dismissPreviews();
         closeDrawer(false);
+        synchronized (sLock) {
+            sForeground = false;
+        }
+        // The process can be killed from now on, write the pending moves
+        InstallShortcutReceiver.flushPendingInstalls();
+        LauncherModel.flushDatabaseWrites();
     }
 
     @Override
@@ -812,7 +853,8 @@ public final class Launcher extends Activity implements View.OnClickListener, On
             info.icon = Utilities.createIconThumbnail(info.icon, this);
             info.filtered = true;
         }
-        favorite.setImageDrawable(Utilities.drawReflection(info.icon, this));
+        favorite.setImageDrawable(sModel.getDerivedIconCache().get(info.icon,
+                DerivedIconCache.EFFECT_REFLECTION, this));
         favorite.setTag(info);
         favorite.setOnClickListener(this);
         return favorite;
@@ -820,10 +862,8 @@ public final class Launcher extends Activity implements View.OnClickListener, On
     View createSmallFolder(int layoutResId, ViewGroup parent, UserFolderInfo info) {
         ImageView favorite = (ImageView) mInflater.inflate(layoutResId, parent, false);
 
-        final Resources resources = getResources();
-        Drawable d = resources.getDrawable(R.drawable.ic_launcher_folder);
-        //d = Utilities.createIconThumbnail(d, this);
-        d=Utilities.drawReflection(d, this);
+        Drawable d = sModel.getDerivedIconCache().get(R.drawable.ic_launcher_folder,
+                DerivedIconCache.EFFECT_REFLECTION, this);
         favorite.setImageDrawable(d);
         favorite.setTag(info);
         favorite.setOnClickListener(this);
@@ -835,14 +875,15 @@ public final class Launcher extends Activity implements View.OnClickListener, On
         //LiveFolderIcon icon = (LiveFolderIcon)
         //LayoutInflater.from(this).inflate(layoutResId, parent, false);
 
-        final Resources resources = getResources();
-        Drawable d = info.icon;
-        if (d == null) {
-        	d = Utilities.createIconThumbnail(
-            resources.getDrawable(R.drawable.ic_launcher_folder), this);
+        final DerivedIconCache derivedIcons = sModel.getDerivedIconCache();
+        Drawable d;
+        if (info.icon == null) {
+        	d = derivedIcons.get(R.drawable.ic_launcher_folder,
+        	        DerivedIconCache.EFFECT_REFLECTION, this);
         	info.filtered = true;
+        } else {
+        	d = derivedIcons.get(info.icon, DerivedIconCache.EFFECT_REFLECTION, this);
         }
-        d=Utilities.drawReflection(d, this);
         favorite.setImageDrawable(d);
         favorite.setTag(info);
         favorite.setOnClickListener(this);
@@ -850,7 +891,7 @@ public final class Launcher extends Activity implements View.OnClickListener, On
     }
     Drawable createSmallActionButtonIcon(ItemInfo info){
         Drawable d = null;
-    	final Resources resources = getResources();
+        int resourceId = R.drawable.ic_launcher_shortcut;
         if(info instanceof ApplicationInfo){
             if (!((ApplicationInfo)info).filtered) {
             	((ApplicationInfo)info).icon = Utilities.createIconThumbnail(((ApplicationInfo)info).icon, this);
@@ -860,20 +901,19 @@ public final class Launcher extends Activity implements View.OnClickListener, On
         }else if(info instanceof LiveFolderInfo){
         	d=((LiveFolderInfo)info).icon;
             if (d == null) {
-            	d = Utilities.createIconThumbnail(
-                resources.getDrawable(R.drawable.ic_launcher_folder), this);
+            	resourceId = R.drawable.ic_launcher_folder;
             	((LiveFolderInfo)info).filtered = true;
             }        	
         }else if(info instanceof UserFolderInfo){
-        	d = resources.getDrawable(R.drawable.ic_launcher_folder);
+        	resourceId = R.drawable.ic_launcher_folder;
         }
+        final int effect = tintActionIcons ? DerivedIconCache.EFFECT_SCALED_TINTED :
+                DerivedIconCache.EFFECT_SCALED;
+        final DerivedIconCache derivedIcons = sModel.getDerivedIconCache();
         if (d == null) {
-        	d = Utilities.createIconThumbnail(
-            resources.getDrawable(R.drawable.ic_launcher_shortcut), this);
+        	return derivedIcons.get(resourceId, effect, this);
         }
-        d=Utilities.scaledDrawable(d, this,tintActionIcons);
-    	
-    	return d;
+    	return derivedIcons.get(d, effect, this);
     }
     /**
      * Add an application shortcut to the workspace.
@@ -1012,7 +1052,7 @@ public final class Launcher extends Activity implements View.OnClickListener, On
         return info;
     }
 
-    private static ApplicationInfo infoFromShortcutIntent(Context context, Intent data) {
+    static ApplicationInfo infoFromShortcutIntent(Context context, Intent data) {
         Intent intent = data.getParcelableExtra(Intent.EXTRA_SHORTCUT_INTENT);
         String name = data.getStringExtra(Intent.EXTRA_SHORTCUT_NAME);
         Bitmap bitmap = data.getParcelableExtra(Intent.EXTRA_SHORTCUT_ICON);
@@ -1023,7 +1063,8 @@ public final class Launcher extends Activity implements View.OnClickListener, On
         ShortcutIconResource iconResource = null;
 
         if (bitmap != null) {
-            icon = new FastBitmapDrawable(Utilities.createBitmapThumbnail(bitmap, context));
+            icon = new FastBitmapDrawable(sModel.getShortcutIconCache().getThumbnail(bitmap,
+                    context));
             filtered = true;
             customIcon = true;
         } else {
@@ -1244,6 +1285,11 @@ public final class Launcher extends Activity implements View.OnClickListener, On
         }else{
         	((AllAppsGridView)mAllAppsGrid).setAdapter(null);
         }
+        // Do not lose the package changes received during the last moments
+        mHandler.removeCallbacks(mApplyPackageChanges);
+        applyPendingPackageChanges();
+        LauncherModel.flushDatabaseWrites();
+
         sModel.unbind();
         sModel.abortLoaders();
 
@@ -1424,6 +1470,58 @@ public final class Launcher extends Activity implements View.OnClickListener, On
         }
     }
 
+    /**
+     * Records a package change. Changes are applied in batch after
+     * PACKAGE_CHANGES_DELAY milliseconds without new changes so that bulk
+     * installs or updates only reload the applications once.
+     */
+    private void queuePackageChange(String packageName, boolean removed, boolean replaced) {
+        if (packageName == null || packageName.length() == 0) return;
+
+        mPendingPackages.add(packageName);
+        if (removed) {
+            mPendingRemovedPackages.add(packageName);
+            mPendingReplacedPackages.remove(packageName);
+        } else {
+            mPendingRemovedPackages.remove(packageName);
+            if (replaced) mPendingReplacedPackages.add(packageName);
+        }
+
+        mHandler.removeCallbacks(mApplyPackageChanges);
+        mHandler.postDelayed(mApplyPackageChanges, PACKAGE_CHANGES_DELAY);
+    }
+
+    private void applyPendingPackageChanges() {
+        if (mPendingPackages.size() == 0) return;
+
+        if (LauncherModel.DEBUG_LOADERS) {
+            d(LauncherModel.LOG_TAG, "applying package changes: " + mPendingPackages);
+        }
+
+        for (String packageName : mPendingRemovedPackages) {
+            removeShortcutsForPackage(packageName);
+        }
+
+        sModel.applyPackageChanges(this, new HashSet<String>(mPendingPackages),
+                new HashSet<String>(mPendingReplacedPackages));
+
+        mPendingPackages.clear();
+        mPendingRemovedPackages.clear();
+        mPendingReplacedPackages.clear();
+    }
+
+    /**
+     * Invoked when the applications list reflects the package changes, see
+     * {@link LauncherModel#applyPackageChanges}.
+     */
+    void onPackageChangesApplied(Set<String> replacedPackages) {
+        if (mDestroyed) return;
+
+        for (String packageName : replacedPackages) {
+            updateShortcutsForPackage(packageName);
+        }
+    }
+
     void addAppWidget(Intent data) {
         // TODO: catch bad widget exception when sent
         int appWidgetId = data.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, -1);
@@ -1600,7 +1698,9 @@ public final class Launcher extends Activity implements View.OnClickListener, On
         if (!cellInfo.findCellForSpan(xy, spanX, spanY)) {
             boolean[] occupied = mSavedState != null ?
                     mSavedState.getBooleanArray(RUNTIME_STATE_PENDING_ADD_OCCUPIED_CELLS) : null;
-            cellInfo = mWorkspace.findAllVacantCells(occupied);
+            // The views may not be bound yet, the model knows the occupied cells
+            cellInfo = occupied != null ? mWorkspace.findAllVacantCells(occupied) :
+                    mWorkspace.findAllVacantCellsFromModel();
             if (!cellInfo.findCellForSpan(xy, spanX, spanY)) {
                 Toast.makeText(this, getString(R.string.out_of_space), Toast.LENGTH_SHORT).show();
                 return false;
@@ -1720,12 +1820,44 @@ public final class Launcher extends Activity implements View.OnClickListener, On
      * a favorites list refresh.
      */
     private void onFavoritesChanged() {
+        final long[] ids = LauncherProvider.takeChangedIds();
+        if (ids != null && !mDesktopLocked) {
+            // Already handled by a previous notification
+            if (ids.length == 0) return;
+            if (sModel.loadChangedItems(this, ids)) return;
+        }
+
+        reloadDesktopItems();
+    }
+
+    private void reloadDesktopItems() {
         mDesktopLocked = true;
         //BY ADW
         //mDrawer.lock();
         sModel.loadUserItems(false, this, false, false);
     }
 
+    /**
+     * Invoked when the rows changed in the favorites table were read, see
+     * {@link LauncherModel#loadChangedItems}.
+     *
+     * @param rows The items of the changed rows, null if they cannot be
+     *        applied incrementally.
+     */
+    void onChangedItemsLoaded(long[] ids, HashMap<Long, ApplicationInfo> rows) {
+        if (mDestroyed) return;
+
+        final ArrayList<ItemInfo> added = new ArrayList<ItemInfo>();
+        final ArrayList<ItemInfo> removed = new ArrayList<ItemInfo>();
+        if (rows != null && !mDesktopLocked &&
+                sModel.applyChangedItems(ids, rows, added, removed)) {
+            bindChangedItems(added, removed);
+            return;
+        }
+
+        reloadDesktopItems();
+    }
+
     /**
      * Re-listen when widgets are reset.
      */
@@ -1763,6 +1895,12 @@ public final class Launcher extends Activity implements View.OnClickListener, On
         }
         //ADW remove the dockbar items too!!!
         mMiniLauncher.removeAllViewsInLayout();
+
+        if (mBoundItems != null && mBoundItems != shortcuts) {
+            if (mRetiredItems == null) mRetiredItems = new ArrayList<ItemInfo>();
+            mRetiredItems.addAll(mBoundItems);
+        }
+        mBoundItems = shortcuts;
         if (DEBUG_USER_INTERFACE) {
             android.widget.Button finishButton = new android.widget.Button(this);
             finishButton.setText("Finish");
@@ -1784,6 +1922,37 @@ public final class Launcher extends Activity implements View.OnClickListener, On
         mBinder.startBindingItems();
     }
 
+    /**
+     * Refreshes the view bound to the specified item after its icon was loaded.
+     */
+    void updateShortcutIcon(ApplicationInfo info) {
+        if (mDestroyed) return;
+
+        final View view = mWorkspace.getViewForTag(info);
+        if (view instanceof TextView) {
+            ((TextView) view).setCompoundDrawablesWithIntrinsicBounds(null, info.icon, null, null);
+        }
+    }
+
+    /**
+     * Patches the workspace after some items changed in the database,
+     * see {@link LauncherModel#applyChangedItems}.
+     */
+    private void bindChangedItems(ArrayList<ItemInfo> added, ArrayList<ItemInfo> removed) {
+        final Workspace workspace = mWorkspace;
+        workspace.removeItems(removed);
+        LauncherModel.releaseDrawables(removed, null);
+
+        final int count = added.size();
+        for (int i = 0; i < count; i++) {
+            final ApplicationInfo info = (ApplicationInfo) added.get(i);
+            final View shortcut = createShortcut(info);
+            workspace.addInScreen(shortcut, info.screen, info.cellX, info.cellY, 1, 1, false);
+        }
+
+        workspace.requestLayout();
+    }
+
     private void bindItems(Launcher.DesktopBinder binder,
             ArrayList<ItemInfo> shortcuts, int start, int count) {
 
@@ -1857,6 +2026,12 @@ public final class Launcher extends Activity implements View.OnClickListener, On
     }
 
     private void finishBindDesktopItems() {
+        // The new items are bound, nothing draws the icons of the old ones anymore
+        if (mRetiredItems != null) {
+            LauncherModel.releaseDrawables(mRetiredItems, mBoundItems);
+            mRetiredItems = null;
+        }
+
         if (mSavedState != null) {
             if (!mWorkspace.hasFocus()) {
                 mWorkspace.getChildAt(mWorkspace.getCurrentScreen()).requestFocus();
@@ -1905,12 +2080,26 @@ public final class Launcher extends Activity implements View.OnClickListener, On
     }
 
     private void bindDrawer(Launcher.DesktopBinder binder,
-        ApplicationsAdapter drawerAdapter) {
-       
+        final ApplicationsAdapter drawerAdapter) {
+
+        // The views of the previous adapter are dropped along with their pins
+        sModel.unpinAll();
         if(newDrawer){
-        	((AllAppsSlidingView)mAllAppsGrid).setAdapter(drawerAdapter);
+        	final AllAppsSlidingView grid = (AllAppsSlidingView) mAllAppsGrid;
+        	grid.setRecyclerListener(new AllAppsSlidingView.RecyclerListener() {
+        	    public void onMovedToScrapHeap(View view) {
+        	        drawerAdapter.releaseView(view);
+        	    }
+        	});
+        	grid.setAdapter(drawerAdapter);
         }else{
-        	((AllAppsGridView)mAllAppsGrid).setAdapter(drawerAdapter);
+        	final AllAppsGridView grid = (AllAppsGridView) mAllAppsGrid;
+        	grid.setRecyclerListener(new AbsListView.RecyclerListener() {
+        	    public void onMovedToScrapHeap(View view) {
+        	        drawerAdapter.releaseView(view);
+        	    }
+        	});
+        	grid.setAdapter(drawerAdapter);
         }
         
     	binder.startBindingAppWidgetsWhenIdle();
@@ -2814,34 +3003,26 @@ public final class Launcher extends Activity implements View.OnClickListener, On
             if (!Intent.ACTION_PACKAGE_CHANGED.equals(action)) {
                 if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
                     if (!replacing) {
-                        removeShortcutsForPackage(packageName);
                         if (LauncherModel.DEBUG_LOADERS) {
                             d(LauncherModel.LOG_TAG, "  --> remove package");
                         }
-                        sModel.removePackage(Launcher.this, packageName);
+                        queuePackageChange(packageName, true, false);
                     }
                     // else, we are replacing the package, so a PACKAGE_ADDED will be sent
                     // later, we will update the package at this time
                 } else {
-                    if (!replacing) {
-                        if (LauncherModel.DEBUG_LOADERS) {
-                            d(LauncherModel.LOG_TAG, "  --> add package");
-                        }
-                        sModel.addPackage(Launcher.this, packageName);
-                    } else {
-                        if (LauncherModel.DEBUG_LOADERS) {
-                            d(LauncherModel.LOG_TAG, "  --> update package " + packageName);
-                        }
-                        sModel.updatePackage(Launcher.this, packageName);
-                        updateShortcutsForPackage(packageName);
+                    if (LauncherModel.DEBUG_LOADERS) {
+                        d(LauncherModel.LOG_TAG, replacing ? "  --> update package " +
+                                packageName : "  --> add package");
                     }
+                    queuePackageChange(packageName, false, replacing);
                 }
                 removeDialog(DIALOG_CREATE_SHORTCUT);
             } else {
                 if (LauncherModel.DEBUG_LOADERS) {
                     d(LauncherModel.LOG_TAG, "  --> sync package " + packageName);
                 }
-                sModel.syncPackage(Launcher.this, packageName);
+                queuePackageChange(packageName, false, false);
             }
         }
     }
@@ -2986,17 +3167,21 @@ public final class Launcher extends Activity implements View.OnClickListener, On
                 return;
             }
 
+            final long start = LoaderStats.start();
             switch (msg.what) {
                 case MESSAGE_BIND_ITEMS: {
                     launcher.bindItems(this, mShortcuts, msg.arg1, msg.arg2);
+                    LoaderStats.end(LoaderStats.PHASE_BIND_ITEMS, start);
                     break;
                 }
                 case MESSAGE_BIND_DRAWER: {
                     launcher.bindDrawer(this, mDrawerAdapter);
+                    LoaderStats.end(LoaderStats.PHASE_BIND_DRAWER, start);
                     break;
                 }
                 case MESSAGE_BIND_APPWIDGETS: {
                     launcher.bindAppWidgets(this, mAppWidgets);
+                    LoaderStats.end(LoaderStats.PHASE_BIND_APPWIDGETS, start);
                     break;
                 }
             }
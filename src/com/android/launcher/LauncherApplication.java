@@ -26,4 +26,10 @@ public class LauncherApplication extends Application {
 
         super.onCreate();
     }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        Launcher.getModel().trimMemory();
+    }
 }
@@ -27,16 +27,28 @@ import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import static android.util.Log.*;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Process;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.ref.WeakReference;
 import java.text.Collator;
@@ -54,7 +66,43 @@ public class LauncherModel {
     private static final int UI_NOTIFICATION_RATE = 4;
     private static final int DEFAULT_APPLICATIONS_NUMBER = 42;
     private static final long APPLICATION_NOT_RESPONDING_TIMEOUT = 5000;
-    private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
+    // Fraction of the heap the icons of the application cache can use
+    private static final int ICON_CACHE_HEAP_FRACTION = 8;
+    // Fraction of the heap the decoded custom shortcut icons can use
+    private static final int SHORTCUT_ICON_CACHE_HEAP_FRACTION = 32;
+    private static final int MAX_LOADER_THREADS = 4;
+    private static final int PENDING_ICONS_BATCH = 6;
+
+    // Columns of the favorites read by the desktop loaders
+    private static final String[] DESKTOP_ITEMS_PROJECTION = new String[] {
+            LauncherSettings.Favorites._ID,
+            LauncherSettings.Favorites.INTENT,
+            LauncherSettings.Favorites.TITLE,
+            LauncherSettings.Favorites.ICON_TYPE,
+            LauncherSettings.Favorites.ICON,
+            LauncherSettings.Favorites.ICON_PACKAGE,
+            LauncherSettings.Favorites.ICON_RESOURCE,
+            LauncherSettings.Favorites.CONTAINER,
+            LauncherSettings.Favorites.ITEM_TYPE,
+            LauncherSettings.Favorites.APPWIDGET_ID,
+            LauncherSettings.Favorites.SCREEN,
+            LauncherSettings.Favorites.CELLX,
+            LauncherSettings.Favorites.CELLY,
+            LauncherSettings.Favorites.SPANX,
+            LauncherSettings.Favorites.SPANY,
+            LauncherSettings.Favorites.URI,
+            LauncherSettings.Favorites.DISPLAY_MODE
+    };
+
+    // Columns of the favorites read by getFolderById()
+    private static final String[] FOLDER_PROJECTION = new String[] {
+            LauncherSettings.Favorites.ITEM_TYPE,
+            LauncherSettings.Favorites.TITLE,
+            LauncherSettings.Favorites.CONTAINER,
+            LauncherSettings.Favorites.SCREEN,
+            LauncherSettings.Favorites.CELLX,
+            LauncherSettings.Favorites.CELLY
+    };
 
     private static final Collator sCollator = Collator.getInstance();
 
@@ -71,21 +119,59 @@ public class LauncherModel {
     private DesktopItemsLoader mDesktopItemsLoader;
     private Thread mApplicationsLoaderThread;
     private Thread mDesktopLoaderThread;
+    // Incremented when the desktop items are reloaded, see loadChangedItems()
+    private int mDesktopGeneration;
+    private Handler mWorkerHandler;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
 
-    private final HashMap<ComponentName, ApplicationInfo> mAppInfoCache =
-            new HashMap<ComponentName, ApplicationInfo>(INITIAL_ICON_CACHE_CAPACITY);
+    private final Runnable mTrimApplications = new Runnable() {
+        public void run() {
+            mAppInfoCache.trim();
+        }
+    };
+    private final Runnable mNotifyIconsRestored = new Runnable() {
+        public void run() {
+            final ApplicationsAdapter adapter = mApplicationsAdapter;
+            if (adapter != null) {
+                adapter.notifyDataSetChanged();
+                trimAfterLayout();
+            }
+        }
+    };
+    // Applications whose icon is being restored on the worker thread, see ensureIcon()
+    private final IdentityHashMap<ApplicationInfo, Boolean> mRestoringIcons =
+            new IdentityHashMap<ApplicationInfo, Boolean>();
+    private Drawable mIconPlaceholder;
+
+    private final ApplicationInfoCache mAppInfoCache = new ApplicationInfoCache(
+            Runtime.getRuntime().maxMemory() / ICON_CACHE_HEAP_FRACTION);
+    // Survives the loaders, the desktop reloads do not decode the icons again
+    private final ShortcutIconCache mShortcutIconCache = new ShortcutIconCache(
+            Runtime.getRuntime().maxMemory() / SHORTCUT_ICON_CACHE_HEAP_FRACTION);
+    private final DerivedIconCache mDerivedIconCache = new DerivedIconCache();
+    // Static like the database writers keeping it up to date
+    private static final DesktopOccupancy sDesktopOccupancy =
+            new DesktopOccupancy(Launcher.NUMBER_CELLS_X, Launcher.NUMBER_CELLS_Y);
+    // Moves, updates and deletes of the favorites, applied behind the UI
+    private static final DatabaseWriter sDatabaseWriter = new DatabaseWriter();
+    private PersistentIconCache mIconCache;
+    // Null unless the drawer icons are packed into an atlas
+    private IconAtlas mIconAtlas;
+    private boolean mIconAtlasChecked;
 
     synchronized void abortLoaders() {
         if (DEBUG_LOADERS) d(LOG_TAG, "aborting loaders");
 
         if (mApplicationsLoader != null && mApplicationsLoader.isRunning()) {
             if (DEBUG_LOADERS) d(LOG_TAG, "  --> aborting applications loader");
+            LoaderStats.increment(LoaderStats.COUNTER_APPLICATIONS_LOADER_ABORTS);
             mApplicationsLoader.stop();
             mApplicationsLoaded = false;
         }
 
         if (mDesktopItemsLoader != null && mDesktopItemsLoader.isRunning()) {
             if (DEBUG_LOADERS) d(LOG_TAG, "  --> aborting workspace loader");
+            LoaderStats.increment(LoaderStats.COUNTER_DESKTOP_LOADER_ABORTS);
             mDesktopItemsLoader.stop();
             mDesktopItemsLoaded = false;
         }
@@ -98,6 +184,70 @@ public class LauncherModel {
      */
     synchronized void dropApplicationCache() {
         mAppInfoCache.clear();
+        if (mIconAtlas != null) {
+            // The icons still shown keep the previous atlas alive until they are gone
+            mIconAtlas = new IconAtlas(mIconAtlas.getCellWidth(), mIconAtlas.getCellHeight());
+        }
+    }
+
+    /**
+     * Returns the on-disk cache of application labels and icons, creating it if needed.
+     */
+    synchronized PersistentIconCache getIconCache(Context context) {
+        if (mIconCache == null) {
+            mIconCache = new PersistentIconCache(context);
+        }
+        return mIconCache;
+    }
+
+    /**
+     * Returns the atlas the icons of the applications are packed into, or null
+     * if the atlas mode is disabled. The mode is read once, changing it restarts
+     * the launcher.
+     */
+    synchronized IconAtlas getIconAtlas(Context context) {
+        if (!mIconAtlasChecked) {
+            mIconAtlasChecked = true;
+            if (AlmostNexusSettingsHelper.getDrawerAtlas(context)) {
+                final IconRenderer renderer = IconRenderer.getInstance(context);
+                mIconAtlas = new IconAtlas(renderer.getIconWidth(), renderer.getIconHeight());
+            }
+        }
+        return mIconAtlas;
+    }
+
+    /**
+     * Wraps the specified thumbnail in a drawable. The thumbnail is copied into
+     * the specified atlas when there is one, otherwise it is converted to the
+     * compact format matching its alpha in the low memory mode. Either way the
+     * original goes back to the bitmap pool unless the drawable uses it.
+     */
+    private static Drawable makeIconDrawable(Bitmap icon, int alpha, IconAtlas atlas,
+            Context context) {
+        if (atlas != null) {
+            final IconAtlas.Slot slot = atlas.add(icon);
+            if (slot != null) {
+                // The atlas copied the pixels, the thumbnail can be reused
+                BitmapPool.release(icon);
+                return new FastBitmapDrawable(slot);
+            }
+        }
+
+        final Bitmap compact = IconRenderer.getInstance(context).compact(icon, alpha);
+        if (compact != icon) BitmapPool.release(icon);
+        return new FastBitmapDrawable(compact);
+    }
+
+    /**
+     * Decodes the thumbnail of the specified cache entry, directly in its compact
+     * format in the low memory mode. The atlas pages have a full alpha channel,
+     * the thumbnails packed into them are decoded in the default format.
+     */
+    private static Bitmap decodeIcon(PersistentIconCache.Entry entry, IconAtlas atlas,
+            Context context) {
+        final Bitmap.Config config = atlas == null ?
+                IconRenderer.getInstance(context).getCompactConfig(entry.alpha) : null;
+        return entry.decodeIcon(config);
     }
 
     /**
@@ -112,7 +262,7 @@ public class LauncherModel {
         if (DEBUG_LOADERS) d(LOG_TAG, "load applications");
 
         if (isLaunching && mApplicationsLoaded && !localeChanged) {
-            mApplicationsAdapter = new ApplicationsAdapter(launcher, mApplications);
+            mApplicationsAdapter = new ApplicationsAdapter(launcher, mApplications, true);
             if (DEBUG_LOADERS) d(LOG_TAG, "  --> applications loaded, return");
             return false;
         }
@@ -121,11 +271,12 @@ public class LauncherModel {
 
         if (localeChanged) {
             dropApplicationCache();
+            getIconCache(launcher).clear();
         }
 
         if (mApplicationsAdapter == null || isLaunching || localeChanged) {
             mApplications = new ArrayList<ApplicationInfo>(DEFAULT_APPLICATIONS_NUMBER);
-            mApplicationsAdapter = new ApplicationsAdapter(launcher, mApplications);
+            mApplicationsAdapter = new ApplicationsAdapter(launcher, mApplications, true);
         }
 
         mApplicationsLoaded = false;
@@ -170,279 +321,476 @@ public class LauncherModel {
         mApplicationsLoaderThread.start();
     }
 
-    synchronized void addPackage(Launcher launcher, String packageName) {
+    /**
+     * Brings the applications list up to date with the current state of the
+     * specified packages. The packages can have been added, removed, updated,
+     * or had some of their activities enabled or disabled: their activities
+     * are found with a single query to the package manager and loaded on the
+     * worker thread, then the changes are applied to the adapter on the UI
+     * thread, which is notified once. {@link Launcher#onPackageChangesApplied}
+     * is invoked when done.
+     *
+     * @param launcher The launcher.
+     * @param packageNames The names of the packages that changed.
+     * @param replacedPackages The names of the packages that were updated.
+     */
+    synchronized void applyPackageChanges(Launcher launcher, Set<String> packageNames,
+            Set<String> replacedPackages) {
+        if (packageNames.size() == 0) return;
+
         if (mApplicationsLoader != null && mApplicationsLoader.isRunning()) {
+            // Forget what we know of these packages and start over
+            mAppInfoCache.removePackages(packageNames);
             startApplicationsLoaderLocked(launcher, false);
+            launcher.onPackageChangesApplied(replacedPackages);
             return;
         }
 
-        if (packageName != null && packageName.length() > 0) {
-            final PackageManager packageManager = launcher.getPackageManager();
-            final List<ResolveInfo> matches = findActivitiesForPackage(packageManager, packageName);
-
-            if (matches.size() > 0) {
-                final ApplicationsAdapter adapter = mApplicationsAdapter;
-                final HashMap<ComponentName, ApplicationInfo> cache = mAppInfoCache;
-
-                for (ResolveInfo info : matches) {
-                    adapter.setNotifyOnChange(false);
-                    adapter.add(makeAndCacheApplicationInfo(packageManager, cache, info, launcher));
-                }
-
-                adapter.sort(new ApplicationInfoComparator());
-                adapter.notifyDataSetChanged();
-            }
+        if (mApplicationsAdapter == null) {
+            launcher.onPackageChangesApplied(replacedPackages);
+            return;
         }
+
+        getWorkerHandler().post(new PackageChangesLoader(launcher, packageNames,
+                replacedPackages));
     }
 
-    synchronized void removePackage(Launcher launcher, String packageName) {
-        if (mApplicationsLoader != null && mApplicationsLoader.isRunning()) {
-            dropApplicationCache(); // TODO: this could be optimized
-            startApplicationsLoaderLocked(launcher, false);
+    /**
+     * Applies to the adapter the activities loaded by a {@link PackageChangesLoader},
+     * on the UI thread.
+     *
+     * @param loaded The activities of the changed packages, by component.
+     */
+    private synchronized void applyLoadedPackageChanges(Launcher launcher,
+            Set<String> packageNames, Set<String> replacedPackages,
+            HashMap<ComponentName, ApplicationInfo> loaded) {
+
+        final ApplicationsAdapter adapter = mApplicationsAdapter;
+        if (adapter == null ||
+                (mApplicationsLoader != null && mApplicationsLoader.isRunning())) {
+            for (ApplicationInfo info : loaded.values()) {
+                FastBitmapDrawable.release(info.icon);
+            }
+            if (adapter != null) {
+                // The applications are being loaded, start over
+                mAppInfoCache.removePackages(packageNames);
+                startApplicationsLoaderLocked(launcher, false);
+            }
+            launcher.onPackageChangesApplied(replacedPackages);
             return;
         }
 
-        if (packageName != null && packageName.length() > 0) {
-            final ApplicationsAdapter adapter = mApplicationsAdapter;
-
-            final List<ApplicationInfo> toRemove = new ArrayList<ApplicationInfo>();
-            final int count = adapter.getCount();
-
-            for (int i = 0; i < count; i++) {
-                final ApplicationInfo applicationInfo = adapter.getItem(i);
-                final Intent intent = applicationInfo.intent;
-                final ComponentName component = intent.getComponent();
-                if (packageName.equals(component.getPackageName())) {
-                    toRemove.add(applicationInfo);
+        final ArrayList<ApplicationInfo> toRemove = new ArrayList<ApplicationInfo>();
+        final ArrayList<ApplicationInfo> toUpdate = new ArrayList<ApplicationInfo>();
+        for (String packageName : packageNames) {
+            for (ApplicationInfo info : adapter.findForPackage(packageName)) {
+                final ApplicationInfo fresh = loaded.remove(info.intent.getComponent());
+                if (fresh == null) {
+                    // Uninstalled or disabled
+                    toRemove.add(info);
+                    continue;
                 }
-            }
 
-            final HashMap<ComponentName, ApplicationInfo> cache = mAppInfoCache;
-            for (ApplicationInfo info : toRemove) {
-                adapter.setNotifyOnChange(false);
-                adapter.remove(info);
-                cache.remove(info.intent.getComponent());
+                final Drawable oldIcon = info.icon;
+                info.title = fresh.title;
+                info.titleKey = fresh.titleKey;
+                info.icon = fresh.icon;
+                info.filtered = true;
+                FastBitmapDrawable.release(oldIcon);
+                toUpdate.add(info);
             }
+        }
+        // The remaining activities are new
+        final ArrayList<ApplicationInfo> toAdd = new ArrayList<ApplicationInfo>(loaded.values());
 
-            if (toRemove.size() > 0) {
-                adapter.sort(new ApplicationInfoComparator());
-                adapter.notifyDataSetChanged();
-            }
+        final ArrayList<ComponentName> removedComponents =
+                new ArrayList<ComponentName>(toRemove.size());
+        adapter.removeAll(toRemove);
+        for (ApplicationInfo info : toRemove) {
+            final ComponentName component = info.intent.getComponent();
+            mAppInfoCache.remove(component);
+            removedComponents.add(component);
+            FastBitmapDrawable.release(info.icon);
         }
-    }
 
-    synchronized void updatePackage(Launcher launcher, String packageName) {
-        if (mApplicationsLoader != null && mApplicationsLoader.isRunning()) {
-            startApplicationsLoaderLocked(launcher, false);
-            return;
+        for (ApplicationInfo info : toUpdate) {
+            // The title may have changed, keep the list sorted
+            adapter.updateSorted(info);
+            mAppInfoCache.put(info.intent.getComponent(), info);
         }
 
-        if (packageName != null && packageName.length() > 0) {
-            final PackageManager packageManager = launcher.getPackageManager();
-            final ApplicationsAdapter adapter = mApplicationsAdapter;
+        for (ApplicationInfo info : toAdd) {
+            mAppInfoCache.put(info.intent.getComponent(), info);
+        }
+        adapter.addAllSorted(toAdd);
+
+        if (toAdd.size() > 0 || toRemove.size() > 0 || toUpdate.size() > 0) {
+            adapter.notifyDataSetChanged();
+            trimAfterLayout();
+
+            // The persistent cache can read its file, write it on the worker thread
+            final PersistentIconCache iconCache = getIconCache(launcher);
+            getWorkerHandler().post(new Runnable() {
+                public void run() {
+                    final int count = removedComponents.size();
+                    for (int i = 0; i < count; i++) {
+                        iconCache.remove(removedComponents.get(i));
+                    }
+                    iconCache.saveInBackground();
+                }
+            });
+        }
 
-            final List<ResolveInfo> matches = findActivitiesForPackage(packageManager, packageName);
-            final int count = matches.size();
+        launcher.onPackageChangesApplied(replacedPackages);
+    }
 
-            boolean changed = false;
+    /**
+     * Loads the launchable activities of changed packages, on the worker
+     * thread, see {@link LauncherModel#applyPackageChanges}.
+     */
+    private class PackageChangesLoader implements Runnable {
+        private final WeakReference<Launcher> mLauncher;
+        private final Set<String> mPackageNames;
+        private final Set<String> mReplacedPackages;
 
-            for (int i = 0; i < count; i++) {
-                final ResolveInfo info = matches.get(i);
-                final ApplicationInfo applicationInfo = findIntent(adapter,
-                        info.activityInfo.applicationInfo.packageName, info.activityInfo.name);
-                if (applicationInfo != null) {
-                    updateAndCacheApplicationInfo(packageManager, info, applicationInfo, launcher);
-                    changed = true;
-                }
-            }
+        PackageChangesLoader(Launcher launcher, Set<String> packageNames,
+                Set<String> replacedPackages) {
+            mLauncher = new WeakReference<Launcher>(launcher);
+            mPackageNames = packageNames;
+            mReplacedPackages = replacedPackages;
+        }
 
-            if (syncLocked(launcher, packageName)) changed = true;
+        public void run() {
+            final Launcher launcher = mLauncher.get();
+            if (launcher == null) return;
 
-            if (changed) {
-                adapter.sort(new ApplicationInfoComparator());
-                adapter.notifyDataSetChanged();
+            final PackageManager manager = launcher.getPackageManager();
+            final PersistentIconCache iconCache = getIconCache(launcher);
+            final IconAtlas atlas = getIconAtlas(launcher);
+            final HashMap<String, List<ResolveInfo>> matches =
+                    findActivitiesForPackages(manager, mPackageNames);
+
+            final HashMap<ComponentName, ApplicationInfo> loaded =
+                    new HashMap<ComponentName, ApplicationInfo>();
+            for (List<ResolveInfo> packageMatches : matches.values()) {
+                for (ResolveInfo info : packageMatches) {
+                    final ComponentName componentName = new ComponentName(
+                            info.activityInfo.applicationInfo.packageName,
+                            info.activityInfo.name);
+
+                    final ApplicationInfo application = new ApplicationInfo();
+                    application.container = ItemInfo.NO_ID;
+                    updateApplicationInfoTitleAndIcon(manager, info, application, launcher,
+                            iconCache, atlas);
+                    application.setActivity(componentName, Intent.FLAG_ACTIVITY_NEW_TASK |
+                            Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
+                    loaded.put(componentName, application);
+                }
             }
+
+            launcher.runOnUiThread(new Runnable() {
+                public void run() {
+                    applyLoadedPackageChanges(launcher, mPackageNames, mReplacedPackages,
+                            loaded);
+                }
+            });
         }
     }
 
-    private void updateAndCacheApplicationInfo(PackageManager packageManager, ResolveInfo info,
-            ApplicationInfo applicationInfo, Context context) {
-
-        updateApplicationInfoTitleAndIcon(packageManager, info, applicationInfo, context);
-
-        ComponentName componentName = new ComponentName(
-                info.activityInfo.applicationInfo.packageName, info.activityInfo.name);
-        mAppInfoCache.put(componentName, applicationInfo);
+    /**
+     * Returns the handler of the thread doing the work of the model that must
+     * not block the UI thread. The work is done in the order it is posted.
+     */
+    private synchronized Handler getWorkerHandler() {
+        if (mWorkerHandler == null) {
+            final HandlerThread thread = new HandlerThread("Launcher Model Worker",
+                    Process.THREAD_PRIORITY_DEFAULT);
+            thread.start();
+            mWorkerHandler = new Handler(thread.getLooper());
+        }
+        return mWorkerHandler;
     }
 
-    synchronized void syncPackage(Launcher launcher, String packageName) {
-        if (mApplicationsLoader != null && mApplicationsLoader.isRunning()) {
-            startApplicationsLoaderLocked(launcher, false);
-            return;
+    /**
+     * Returns the icon to display for the specified application and marks the
+     * application as recently used. If the icon was dropped from the application
+     * cache to stay within its memory budget, it is restored on the worker thread,
+     * the adapter is notified when done, and a placeholder is returned meanwhile.
+     * Must be invoked on the UI thread.
+     */
+    Drawable ensureIcon(ApplicationInfo info, Context context) {
+        final ComponentName component = info.intent.getComponent();
+        if (info.icon != null || component == null) {
+            if (component != null) mAppInfoCache.get(component);
+            return info.icon;
         }
 
-        if (packageName != null && packageName.length() > 0) {
-            if (syncLocked(launcher, packageName)) {
-                final ApplicationsAdapter adapter = mApplicationsAdapter;
-                adapter.sort(new ApplicationInfoComparator());
-                adapter.notifyDataSetChanged();                
-            }
+        if (!mRestoringIcons.containsKey(info)) {
+            mRestoringIcons.put(info, Boolean.TRUE);
+            getWorkerHandler().post(new IconRestorer(info, context.getApplicationContext()));
         }
-    }
-
-    private boolean syncLocked(Launcher launcher, String packageName) {
-        final PackageManager packageManager = launcher.getPackageManager();
-        final List<ResolveInfo> matches = findActivitiesForPackage(packageManager, packageName);
 
-        if (matches.size() > 0) {
-            final ApplicationsAdapter adapter = mApplicationsAdapter;
+        if (mIconPlaceholder == null) {
+            final Bitmap placeholder = IconRenderer.getInstance(context).createIconBitmap(
+                    context.getPackageManager().getDefaultActivityIcon());
+            final FastBitmapDrawable drawable = new FastBitmapDrawable(placeholder);
+            // Displayed by any number of views, never recycled
+            drawable.setShared();
+            mIconPlaceholder = drawable;
+        }
+        return mIconPlaceholder;
+    }
 
-            // Find disabled activities and remove them from the adapter
-            boolean removed = removeDisabledActivities(packageName, matches, adapter);
-            // Find enable activities and add them to the adapter
-            // Also updates existing activities with new labels/icons
-            boolean added = addEnabledAndUpdateActivities(matches, adapter, launcher);
+    /**
+     * Loads an icon dropped from the application cache, on the worker thread,
+     * and gives it back to its application on the UI thread.
+     */
+    private class IconRestorer implements Runnable {
+        private final ApplicationInfo mInfo;
+        private final Context mContext;
 
-            return added || removed;
+        IconRestorer(ApplicationInfo info, Context context) {
+            mInfo = info;
+            mContext = context;
         }
 
-        return false;
-    }
+        public void run() {
+            final Context context = mContext;
+            final ComponentName component = mInfo.intent.getComponent();
+            final PackageManager manager = context.getPackageManager();
+            ActivityInfo activityInfo = null;
+            try {
+                activityInfo = manager.getActivityInfo(component, 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                // The package is going away, the package receiver will remove it
+            }
 
-    private static List<ResolveInfo> findActivitiesForPackage(PackageManager packageManager,
-            String packageName) {
+            final IconAtlas atlas = getIconAtlas(context);
+            final IconRenderer renderer = IconRenderer.getInstance(context);
+            Bitmap icon = null;
+            int alpha = IconRenderer.ALPHA_UNKNOWN;
+            if (activityInfo != null) {
+                final PersistentIconCache.Entry entry = getIconCache(context).get(component,
+                        PersistentIconCache.getTimestamp(activityInfo));
+                if (entry != null) {
+                    icon = decodeIcon(entry, atlas, context);
+                    alpha = entry.alpha;
+                }
+                if (icon == null) {
+                    icon = renderer.createIconBitmap(activityInfo.loadIcon(manager));
+                    alpha = renderer.classifyAlpha(icon);
+                }
+            } else {
+                icon = renderer.createIconBitmap(manager.getDefaultActivityIcon());
+                alpha = renderer.classifyAlpha(icon);
+            }
 
-        final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
-        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+            final Drawable drawable = makeIconDrawable(icon, alpha, atlas, context);
+            mUiHandler.post(new Runnable() {
+                public void run() {
+                    final ApplicationInfo info = mInfo;
+                    mRestoringIcons.remove(info);
+                    // The application may have been removed or updated meanwhile
+                    if (info.icon != null || mAppInfoCache.get(component) != info) {
+                        FastBitmapDrawable.release(drawable);
+                        return;
+                    }
 
-        final List<ResolveInfo> apps = packageManager.queryIntentActivities(mainIntent, 0);
-        final List<ResolveInfo> matches = new ArrayList<ResolveInfo>();
+                    info.icon = drawable;
+                    info.filtered = true;
+                    mAppInfoCache.iconChanged(info);
 
-        if (apps != null) {
-            // Find all activities that match the packageName
-            int count = apps.size();
-            for (int i = 0; i < count; i++) {
-                final ResolveInfo info = apps.get(i);
-                final ActivityInfo activityInfo = info.activityInfo;
-                if (packageName.equals(activityInfo.packageName)) {
-                    matches.add(info);
+                    // A single notification for the icons restored together
+                    mUiHandler.removeCallbacks(mNotifyIconsRestored);
+                    mUiHandler.post(mNotifyIconsRestored);
                 }
-            }
+            });
         }
+    }
 
-        return matches;
+    /**
+     * Drops icons from the application cache once the views displaying the
+     * applications were laid out again and pinned the icons they show. Must be
+     * invoked on the UI thread, after the adapter was notified: the layout pass
+     * the notification scheduled runs first.
+     */
+    void trimAfterLayout() {
+        mUiHandler.removeCallbacks(mTrimApplications);
+        mUiHandler.post(mTrimApplications);
     }
 
-    private boolean addEnabledAndUpdateActivities(List<ResolveInfo> matches,
-            ApplicationsAdapter adapter, Launcher launcher) {
+    /**
+     * Returns the cache of the custom shortcut icons.
+     */
+    ShortcutIconCache getShortcutIconCache() {
+        return mShortcutIconCache;
+    }
 
-        final List<ApplicationInfo> toAdd = new ArrayList<ApplicationInfo>();
-        final int count = matches.size();
+    /**
+     * Returns the cache of the reflections and scaled icons of the dock and
+     * of the action buttons.
+     */
+    DerivedIconCache getDerivedIconCache() {
+        return mDerivedIconCache;
+    }
 
-        boolean changed = false;
+    /**
+     * Computes the derived icons of the items of the dock and of the action
+     * buttons so that binding them does not have to.
+     */
+    private void warmDerivedIcons(Context context, ArrayList<ItemInfo> items) {
+        final DerivedIconCache derivedIcons = mDerivedIconCache;
+        final int scaledEffect = AlmostNexusSettingsHelper.getUITint(context) ?
+                DerivedIconCache.EFFECT_SCALED_TINTED : DerivedIconCache.EFFECT_SCALED;
 
+        final int count = items.size();
         for (int i = 0; i < count; i++) {
-            final ResolveInfo info = matches.get(i);
-            final ApplicationInfo applicationInfo = findIntent(adapter,
-                    info.activityInfo.applicationInfo.packageName, info.activityInfo.name);
-            if (applicationInfo == null) {
-                toAdd.add(makeAndCacheApplicationInfo(launcher.getPackageManager(),
-                        mAppInfoCache, info, launcher));
-                changed = true;
-            } else {
-                updateAndCacheApplicationInfo(
-                        launcher.getPackageManager(), info, applicationInfo, launcher);
-                changed = true;
+            final ItemInfo item = items.get(i);
+            final int effect;
+            switch ((int) item.container) {
+                case LauncherSettings.Favorites.CONTAINER_DOCKBAR:
+                    effect = DerivedIconCache.EFFECT_REFLECTION;
+                    break;
+                case LauncherSettings.Favorites.CONTAINER_LAB:
+                case LauncherSettings.Favorites.CONTAINER_RAB:
+                    effect = scaledEffect;
+                    break;
+                default:
+                    continue;
             }
-        }
 
-        for (ApplicationInfo info : toAdd) {
-            adapter.setNotifyOnChange(false);
-            adapter.add(info);
+            Drawable icon = null;
+            if (item instanceof ApplicationInfo) {
+                icon = ((ApplicationInfo) item).icon;
+            } else if (item instanceof LiveFolderInfo) {
+                icon = ((LiveFolderInfo) item).icon;
+            }
+
+            if (icon != null) {
+                derivedIcons.get(icon, effect, context);
+            } else if (item instanceof FolderInfo) {
+                derivedIcons.get(R.drawable.ic_launcher_folder, effect, context);
+            }
         }
+    }
 
-        return changed;
+    void pin(ApplicationInfo info) {
+        mAppInfoCache.pin(info);
     }
 
-    private boolean removeDisabledActivities(String packageName, List<ResolveInfo> matches,
-            ApplicationsAdapter adapter) {
+    void unpin(ApplicationInfo info) {
+        mAppInfoCache.unpin(info);
+    }
 
-        final List<ApplicationInfo> toRemove = new ArrayList<ApplicationInfo>();
-        final int count = adapter.getCount();
+    /**
+     * Releases the icons pinned by the views of a drawer adapter being replaced.
+     */
+    void unpinAll() {
+        mAppInfoCache.unpinAll();
+    }
 
-        boolean changed = false;
+    /**
+     * Drops the icons of the cached applications that are not displayed and
+     * the decoded shortcut icons.
+     * Invoked when the system runs low on memory. Must be invoked on the UI thread.
+     */
+    void trimMemory() {
+        mShortcutIconCache.clear();
+        mDerivedIconCache.clear();
+        BitmapPool.clear();
+        final int dropped = mAppInfoCache.trimTo(0);
+        if (DEBUG_LOADERS) d(LOG_TAG, "  ----> dropped " + dropped + " cached icons");
+    }
 
-        for (int i = 0; i < count; i++) {
-            final ApplicationInfo applicationInfo = adapter.getItem(i);
-            final Intent intent = applicationInfo.intent;
-            final ComponentName component = intent.getComponent();
-            if (packageName.equals(component.getPackageName())) {
-                if (!findIntent(matches, component)) {
-                    toRemove.add(applicationInfo);
-                    changed = true;
-                }
-            }
-        }
+    /**
+     * Returns the launchable activities of the specified packages, grouped by package.
+     */
+    private static HashMap<String, List<ResolveInfo>> findActivitiesForPackages(
+            PackageManager packageManager, Set<String> packageNames) {
 
-        final HashMap<ComponentName, ApplicationInfo> cache = mAppInfoCache;
-        for (ApplicationInfo info : toRemove) {
-            adapter.setNotifyOnChange(false);
-            adapter.remove(info);
-            cache.remove(info.intent.getComponent());
+        final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+        if (packageNames.size() == 1) {
+            // Let the package manager do the filtering
+            mainIntent.setPackage(packageNames.iterator().next());
         }
 
-        return changed;
-    }
-
-    private static ApplicationInfo findIntent(ApplicationsAdapter adapter, String packageName,
-            String name) {
+        final List<ResolveInfo> apps = packageManager.queryIntentActivities(mainIntent, 0);
+        final HashMap<String, List<ResolveInfo>> matches =
+                new HashMap<String, List<ResolveInfo>>(packageNames.size());
 
-        final int count = adapter.getCount();
-        for (int i = 0; i < count; i++) {
-            final ApplicationInfo applicationInfo = adapter.getItem(i);
-            final Intent intent = applicationInfo.intent;
-            final ComponentName component = intent.getComponent();
-            if (packageName.equals(component.getPackageName()) &&
-                    name.equals(component.getClassName())) {
-                return applicationInfo;
+        if (apps != null) {
+            final int count = apps.size();
+            for (int i = 0; i < count; i++) {
+                final ResolveInfo info = apps.get(i);
+                final String packageName = info.activityInfo.packageName;
+                if (packageNames.contains(packageName)) {
+                    List<ResolveInfo> packageMatches = matches.get(packageName);
+                    if (packageMatches == null) {
+                        packageMatches = new ArrayList<ResolveInfo>();
+                        matches.put(packageName, packageMatches);
+                    }
+                    packageMatches.add(info);
+                }
             }
         }
 
-        return null;
+        return matches;
     }
 
-    private static boolean findIntent(List<ResolveInfo> apps, ComponentName component) {
-        final String className = component.getClassName();
-        for (ResolveInfo info : apps) {
-            final ActivityInfo activityInfo = info.activityInfo;
-            if (activityInfo.name.equals(className)) {
-                return true;
-            }
-        }
-        return false;
+    private static ApplicationInfo findIntent(ApplicationsAdapter adapter, String packageName,
+            String name) {
+        return adapter.find(new ComponentName(packageName, name));
     }
 
-    Drawable getApplicationInfoIcon(PackageManager manager, ApplicationInfo info) {
+    /**
+     * Returns the icon of the application launched by the specified item, a
+     * copy owned by the desktop, see {@link #loadDesktopIcon}.
+     */
+    Drawable getApplicationInfoIcon(PackageManager manager, ApplicationInfo info,
+            Context context) {
         final ResolveInfo resolveInfo = manager.resolveActivity(info.intent, 0);
         if (resolveInfo == null) {
             return null;
         }
+        return loadDesktopIcon(manager, resolveInfo.activityInfo, context);
+    }
 
-        ComponentName componentName = new ComponentName(
-                resolveInfo.activityInfo.applicationInfo.packageName,
-                resolveInfo.activityInfo.name);
-        ApplicationInfo application = mAppInfoCache.get(componentName);
-
-        if (application == null) {
-            return resolveInfo.activityInfo.loadIcon(manager);
+    /**
+     * Returns a thumbnail of the icon of the specified activity owned by the
+     * caller. The drawer trims its icons on its own, the desktop keeps its
+     * copy for as long as the item is bound. The thumbnail is decoded from
+     * the persistent icon cache when it is up to date there, otherwise it is
+     * rendered and stored in the cache. This method can be invoked from the
+     * loader threads.
+     */
+    Drawable loadDesktopIcon(PackageManager manager, ActivityInfo activityInfo,
+            Context context) {
+        final ComponentName componentName = new ComponentName(
+                activityInfo.applicationInfo.packageName, activityInfo.name);
+        final long timestamp = PersistentIconCache.getTimestamp(activityInfo);
+        final PersistentIconCache iconCache = getIconCache(context);
+
+        final PersistentIconCache.Entry entry = iconCache.get(componentName, timestamp);
+        if (entry != null) {
+            final Bitmap icon = decodeIcon(entry, null, context);
+            if (icon != null) return new FastBitmapDrawable(icon);
         }
 
-        return application.icon;
+        final IconRenderer renderer = IconRenderer.getInstance(context);
+        final Bitmap icon = renderer.createIconBitmap(activityInfo.loadIcon(manager));
+        final int alpha = renderer.classifyAlpha(icon);
+        iconCache.put(componentName, timestamp, activityInfo.loadLabel(manager), icon, alpha);
+        return makeIconDrawable(icon, alpha, null, context);
     }
 
+    /**
+     * Returns the cached application for the specified activity or creates it.
+     * This method can be invoked from several loader threads at once.
+     */
     private static ApplicationInfo makeAndCacheApplicationInfo(PackageManager manager,
-            HashMap<ComponentName, ApplicationInfo> appInfoCache, ResolveInfo info,
-            Context context) {
+            ApplicationInfoCache appInfoCache, PersistentIconCache iconCache, IconAtlas atlas,
+            ResolveInfo info, Context context) {
 
         ComponentName componentName = new ComponentName(
                 info.activityInfo.applicationInfo.packageName,
@@ -453,28 +801,71 @@ public class LauncherModel {
             application = new ApplicationInfo();
             application.container = ItemInfo.NO_ID;
 
-            updateApplicationInfoTitleAndIcon(manager, info, application, context);
+            updateApplicationInfoTitleAndIcon(manager, info, application, context, iconCache,
+                    atlas);
 
             application.setActivity(componentName,
                     Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_RESET_TASK_IF_NEEDED);
 
-            appInfoCache.put(componentName, application);
+            application = appInfoCache.putIfAbsent(componentName, application);
         }
 
         return application;
     }
 
+    /**
+     * Sets the title and the icon of the specified application. They are read from
+     * the persistent icon cache when it holds an up to date entry for the activity,
+     * otherwise they are loaded from the package manager and stored in the cache.
+     */
     private static void updateApplicationInfoTitleAndIcon(PackageManager manager, ResolveInfo info,
-            ApplicationInfo application, Context context) {
+            ApplicationInfo application, Context context, PersistentIconCache iconCache,
+            IconAtlas atlas) {
+
+        final ActivityInfo activityInfo = info.activityInfo;
+        final ComponentName componentName = new ComponentName(
+                activityInfo.applicationInfo.packageName, activityInfo.name);
+        final long timestamp = PersistentIconCache.getTimestamp(activityInfo);
+
+        final PersistentIconCache.Entry entry = iconCache.get(componentName, timestamp);
+        if (entry != null) {
+            final Bitmap icon = decodeIcon(entry, atlas, context);
+            if (icon != null) {
+                LoaderStats.increment(LoaderStats.COUNTER_ICON_CACHE_HITS);
+                application.title = entry.label;
+                updateTitleKey(application);
+                application.icon = makeIconDrawable(icon, entry.alpha, atlas, context);
+                application.filtered = true;
+                return;
+            }
+        }
+
+        LoaderStats.increment(LoaderStats.COUNTER_ICON_CACHE_MISSES);
 
+        long start = LoaderStats.start();
         application.title = info.loadLabel(manager);
         if (application.title == null) {
-            application.title = info.activityInfo.name;
+            application.title = activityInfo.name;
         }
+        updateTitleKey(application);
+        LoaderStats.end(LoaderStats.PHASE_LOAD_LABEL, start);
+
+        start = LoaderStats.start();
+        final Drawable drawable = activityInfo.loadIcon(manager);
+        LoaderStats.end(LoaderStats.PHASE_LOAD_ICON, start);
+
+        start = LoaderStats.start();
+        final IconRenderer renderer = IconRenderer.getInstance(context);
+        final Bitmap icon = renderer.createIconBitmap(drawable);
+        // Checked once, the cache records the result
+        final int alpha = renderer.classifyAlpha(icon);
+        LoaderStats.end(LoaderStats.PHASE_THUMBNAIL, start);
 
-        application.icon =
-                Utilities.createIconThumbnail(info.activityInfo.loadIcon(manager), context);
-        application.filtered = false;
+        // The cache keeps the full quality thumbnail, store it before it is compacted
+        iconCache.put(componentName, timestamp, application.title, icon, alpha);
+
+        application.icon = makeIconDrawable(icon, alpha, atlas, context);
+        application.filtered = true;
     }
  
     private static final AtomicInteger sAppsLoaderCount = new AtomicInteger(1);
@@ -511,45 +902,148 @@ public class LauncherModel {
             android.os.Process.setThreadPriority(mIsLaunching ? Process.THREAD_PRIORITY_DEFAULT :
                     Process.THREAD_PRIORITY_BACKGROUND);
 
+            final long loaderStart = LoaderStats.start();
+
             final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
             mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
 
             final Launcher launcher = mLauncher.get();
             final PackageManager manager = launcher.getPackageManager();
+            final long queryStart = LoaderStats.start();
             final List<ResolveInfo> apps = manager.queryIntentActivities(mainIntent, 0);
+            LoaderStats.end(LoaderStats.PHASE_QUERY_ACTIVITIES, queryStart);
 
             if (apps != null && !mStopped) {
                 final int count = apps.size();
+                LoaderStats.add(LoaderStats.COUNTER_APPLICATIONS, count);
                 // Can be set to null on the UI thread by the unbind() method
                 // Do not access without checking for null first
                 final ApplicationsAdapter applicationList = mApplicationsAdapter;
 
-                ChangeNotifier action = new ChangeNotifier(applicationList, true);
-                final HashMap<ComponentName, ApplicationInfo> appInfoCache = mAppInfoCache;
+                final PersistentIconCache iconCache = getIconCache(launcher);
 
-                for (int i = 0; i < count && !mStopped; i++) {
-                    ResolveInfo info = apps.get(i);
-                    ApplicationInfo application =
-                        makeAndCacheApplicationInfo(manager, appInfoCache, info, launcher);
+                final int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                        MAX_LOADER_THREADS);
+                final IconAtlas atlas = getIconAtlas(launcher);
+                if (threads > 1 && count > UI_NOTIFICATION_RATE) {
+                    loadParallel(launcher, manager, apps, applicationList, iconCache, atlas,
+                            threads);
+                } else {
+                    loadSerial(launcher, manager, apps, applicationList, iconCache, atlas);
+                }
 
-                    if (action.add(application) && !mStopped) {
-                        launcher.runOnUiThread(action);
-                        action = new ChangeNotifier(applicationList, false);
+                if (!mStopped) {
+                    // Forget the activities that are gone and write the cache back
+                    final HashSet<ComponentName> components = new HashSet<ComponentName>(count);
+                    for (int i = 0; i < count; i++) {
+                        final ActivityInfo activityInfo = apps.get(i).activityInfo;
+                        components.add(new ComponentName(
+                                activityInfo.applicationInfo.packageName, activityInfo.name));
                     }
+                    iconCache.retainAll(components);
+                    iconCache.save();
                 }
-
-                launcher.runOnUiThread(action);
             }
 
             synchronized(LauncherModel.this) {
                 if (!mStopped) {
                     mApplicationsLoaded = true;
+                    LoaderStats.end(LoaderStats.PHASE_APPLICATIONS_LOADER, loaderStart);
                 } else {
                     if (DEBUG_LOADERS) d(LOG_TAG, "  ----> applications loader stopped (" + mId + ")");
                 }
             }
             mRunning = false;
         }
+
+        private void loadSerial(Launcher launcher, PackageManager manager, List<ResolveInfo> apps,
+                ApplicationsAdapter applicationList, PersistentIconCache iconCache,
+                IconAtlas atlas) {
+
+            final int count = apps.size();
+            final ApplicationInfoCache appInfoCache = mAppInfoCache;
+            ChangeNotifier action = new ChangeNotifier(applicationList, true);
+
+            for (int i = 0; i < count && !mStopped; i++) {
+                ResolveInfo info = apps.get(i);
+                ApplicationInfo application = makeAndCacheApplicationInfo(manager,
+                        appInfoCache, iconCache, atlas, info, launcher);
+
+                if (action.add(application) && !mStopped) {
+                    action.post(launcher);
+                    action = new ChangeNotifier(applicationList, false);
+                }
+            }
+
+            action.post(launcher);
+        }
+
+        /**
+         * Loads the applications on a pool of worker threads. The results are
+         * consumed in the order returned by the package manager so the UI
+         * notifications are the same as with {@link #loadSerial}.
+         */
+        private void loadParallel(final Launcher launcher, final PackageManager manager,
+                List<ResolveInfo> apps, ApplicationsAdapter applicationList,
+                final PersistentIconCache iconCache, final IconAtlas atlas, int threads) {
+
+            final int count = apps.size();
+            final ApplicationInfoCache appInfoCache = mAppInfoCache;
+            final int priority = mIsLaunching ? Process.THREAD_PRIORITY_DEFAULT :
+                    Process.THREAD_PRIORITY_BACKGROUND;
+
+            final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                    new ThreadFactory() {
+                        private int mCount;
+
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                public void run() {
+                                    android.os.Process.setThreadPriority(priority);
+                                    r.run();
+                                }
+                            }, "Applications Loader Worker " + mId + "-" + (++mCount));
+                        }
+                    });
+
+            try {
+                final ArrayList<Future<ApplicationInfo>> results =
+                        new ArrayList<Future<ApplicationInfo>>(count);
+                for (int i = 0; i < count; i++) {
+                    final ResolveInfo info = apps.get(i);
+                    results.add(executor.submit(new Callable<ApplicationInfo>() {
+                        public ApplicationInfo call() {
+                            if (mStopped) return null;
+                            return makeAndCacheApplicationInfo(manager, appInfoCache, iconCache,
+                                    atlas, info, launcher);
+                        }
+                    }));
+                }
+
+                ChangeNotifier action = new ChangeNotifier(applicationList, true);
+
+                for (int i = 0; i < count && !mStopped; i++) {
+                    final ApplicationInfo application;
+                    try {
+                        application = results.get(i).get();
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (ExecutionException e) {
+                        w(LOG_TAG, "Could not load application " + apps.get(i), e.getCause());
+                        continue;
+                    }
+
+                    if (application != null && action.add(application) && !mStopped) {
+                        action.post(launcher);
+                        action = new ChangeNotifier(applicationList, false);
+                    }
+                }
+
+                action.post(launcher);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
     }
 
     private static class ChangeNotifier implements Runnable {
@@ -557,6 +1051,7 @@ public class LauncherModel {
         private final ArrayList<ApplicationInfo> mBuffer;
 
         private boolean mFirst = true;
+        private long mPostTime;
 
         ChangeNotifier(ApplicationsAdapter applicationList, boolean first) {
             mApplicationList = applicationList;
@@ -564,7 +1059,17 @@ public class LauncherModel {
             mBuffer = new ArrayList<ApplicationInfo>(UI_NOTIFICATION_RATE);
         }
 
+        /**
+         * Runs this notifier on the UI thread of the specified launcher.
+         */
+        void post(Launcher launcher) {
+            mPostTime = LoaderStats.start();
+            launcher.runOnUiThread(this);
+        }
+
         public void run() {
+            LoaderStats.end(LoaderStats.PHASE_UI_POST, mPostTime);
+
             final ApplicationsAdapter applicationList = mApplicationList;
             // Can be set to null on the UI thread by the unbind() method
             if (applicationList == null) return;
@@ -577,17 +1082,11 @@ public class LauncherModel {
             }
 
             final ArrayList<ApplicationInfo> buffer = mBuffer;
-            final int count = buffer.size();
-
-            for (int i = 0; i < count; i++) {
-                applicationList.setNotifyOnChange(false);
-                applicationList.add(buffer.get(i));
-            }
-
+            applicationList.addAllSorted(buffer);
             buffer.clear();
 
-            applicationList.sort(new ApplicationInfoComparator());
             applicationList.notifyDataSetChanged();
+            Launcher.getModel().trimAfterLayout();
         }
 
         boolean add(ApplicationInfo application) {
@@ -597,9 +1096,27 @@ public class LauncherModel {
         }
     }
 
+    /**
+     * Computes the collation key of the title of the specified application.
+     * Must be invoked every time the title changes.
+     */
+    static void updateTitleKey(ApplicationInfo info) {
+        final Collator collator = sCollator;
+        // Collator instances are not thread-safe
+        synchronized (collator) {
+            info.titleKey = collator.getCollationKey(info.title.toString());
+        }
+    }
+
     static class ApplicationInfoComparator implements Comparator<ApplicationInfo> {
         public final int compare(ApplicationInfo a, ApplicationInfo b) {
-            return sCollator.compare(a.title.toString(), b.title.toString());
+            if (a.titleKey != null && b.titleKey != null) {
+                return a.titleKey.compareTo(b.titleKey);
+            }
+            final Collator collator = sCollator;
+            synchronized (collator) {
+                return collator.compare(a.title.toString(), b.title.toString());
+            }
         }
     }
 
@@ -643,6 +1160,9 @@ public class LauncherModel {
         }
 
         if (DEBUG_LOADERS) d(LOG_TAG, "  --> starting workspace loader");
+        // The loader reads everything, pending row changes are obsolete
+        LauncherProvider.takeChangedIds();
+        mDesktopGeneration++;
         mDesktopItemsLoaded = false;
         mDesktopItemsLoader = new DesktopItemsLoader(launcher, localeChanged, loadApplications,
                 isLaunching);
@@ -650,6 +1170,232 @@ public class LauncherModel {
         mDesktopLoaderThread.start();
     }
 
+    /**
+     * Applies to the desktop items the changes made to the specified rows of the
+     * favorites table, see {@link LauncherProvider#takeChangedIds()}. Only the
+     * applications and shortcuts placed on the workspace are handled
+     * incrementally, any other change requires a full reload.
+     *
+     * The rows are read on a background thread and handed to
+     * {@link Launcher#onChangedItemsLoaded} on the UI thread, which applies
+     * them with {@link #applyChangedItems}.
+     *
+     * @param launcher The launcher.
+     * @param ids The ids of the rows that changed.
+     *
+     * @return false if the changes could not be applied and the desktop items
+     *         must be reloaded with {@link #loadUserItems}.
+     */
+    boolean loadChangedItems(Launcher launcher, long[] ids) {
+        if (!isDesktopLoaded() ||
+                (mDesktopItemsLoader != null && mDesktopItemsLoader.isRunning())) {
+            return false;
+        }
+
+        // A single thread, the changes are applied in the order they were made
+        getWorkerHandler().post(new ChangedItemsLoader(launcher, ids, mDesktopGeneration));
+        return true;
+    }
+
+    /**
+     * Applies to the desktop items the rows read by {@link #loadChangedItems}.
+     * Must be invoked on the UI thread.
+     *
+     * @param ids The ids of the rows that changed.
+     * @param rows The items read from the changed rows still in the database.
+     * @param added Receives the items that must be bound to the workspace.
+     * @param removed Receives the items whose views must be removed from the workspace.
+     *
+     * @return false if the changes could not be applied and the desktop items
+     *         must be reloaded with {@link #loadUserItems}.
+     */
+    boolean applyChangedItems(long[] ids, HashMap<Long, ApplicationInfo> rows,
+            ArrayList<ItemInfo> added, ArrayList<ItemInfo> removed) {
+
+        if (!isDesktopLoaded() ||
+                (mDesktopItemsLoader != null && mDesktopItemsLoader.isRunning())) {
+            return false;
+        }
+
+        // Make sure every change can be applied before touching the model
+        final HashMap<Long, ItemInfo> existing = new HashMap<Long, ItemInfo>();
+        for (long id : ids) {
+            final ItemInfo item = findDesktopItemById(id);
+            if (item != null) {
+                if ((item.itemType != LauncherSettings.Favorites.ITEM_TYPE_APPLICATION &&
+                        item.itemType != LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT) ||
+                        item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                    return false;
+                }
+                existing.put(id, item);
+            } else if (!rows.containsKey(id) &&
+                    (isInUserFolder(id) || findDesktopAppWidgetById(id) != null)) {
+                return false;
+            }
+        }
+
+        for (long id : ids) {
+            final ItemInfo item = existing.get(id);
+            if (item != null) {
+                removeDesktopItem(item);
+                removed.add(item);
+            }
+
+            final ApplicationInfo info = rows.get(id);
+            if (info != null) {
+                addDesktopItem(info);
+                added.add(info);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the changed rows of the favorites table, on the thread of
+     * {@link LauncherModel#getWorkerHandler()}.
+     */
+    private class ChangedItemsLoader implements Runnable {
+        private final WeakReference<Launcher> mLauncher;
+        private final long[] mIds;
+        private final int mGeneration;
+
+        ChangedItemsLoader(Launcher launcher, long[] ids, int generation) {
+            mLauncher = new WeakReference<Launcher>(launcher);
+            mIds = ids;
+            mGeneration = generation;
+        }
+
+        public void run() {
+            final Launcher launcher = mLauncher.get();
+            if (launcher == null) return;
+
+            final HashMap<Long, ApplicationInfo> rows = loadRows(launcher);
+            launcher.runOnUiThread(new Runnable() {
+                public void run() {
+                    // A full reload started meanwhile and covers these changes
+                    if (mGeneration != mDesktopGeneration) return;
+                    launcher.onChangedItemsLoaded(mIds, rows);
+                }
+            });
+        }
+
+        /**
+         * Returns the items of the changed rows still in the database, or
+         * null if one of them is not handled incrementally.
+         */
+        private HashMap<Long, ApplicationInfo> loadRows(Launcher launcher) {
+            final long[] ids = mIds;
+            final StringBuilder where = new StringBuilder(LauncherSettings.Favorites._ID);
+            where.append(" IN (");
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0) where.append(',');
+                where.append(ids[i]);
+            }
+            where.append(')');
+
+            final PackageManager manager = launcher.getPackageManager();
+            final HashMap<Long, ApplicationInfo> rows = new HashMap<Long, ApplicationInfo>();
+
+            sDatabaseWriter.flush();
+            final Cursor c = launcher.getContentResolver().query(
+                    LauncherSettings.Favorites.CONTENT_URI, DESKTOP_ITEMS_PROJECTION,
+                    where.toString(), null, null);
+            if (c == null) return null;
+
+            try {
+                final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
+                final int intentIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.INTENT);
+                final int titleIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE);
+                final int iconTypeIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON_TYPE);
+                final int iconIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON);
+                final int iconPackageIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON_PACKAGE);
+                final int iconResourceIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON_RESOURCE);
+                final int containerIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CONTAINER);
+                final int itemTypeIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ITEM_TYPE);
+                final int screenIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.SCREEN);
+                final int cellXIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CELLX);
+                final int cellYIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.CELLY);
+
+                while (c.moveToNext()) {
+                    final int itemType = c.getInt(itemTypeIndex);
+                    if ((itemType != LauncherSettings.Favorites.ITEM_TYPE_APPLICATION &&
+                            itemType != LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT) ||
+                            c.getInt(containerIndex) != LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                        return null;
+                    }
+
+                    final Intent intent;
+                    try {
+                        intent = Intent.parseUri(c.getString(intentIndex), 0);
+                    } catch (URISyntaxException e) {
+                        return null;
+                    }
+
+                    ApplicationInfo info;
+                    if (itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                        info = getApplicationInfo(manager, intent, launcher);
+                    } else {
+                        info = getApplicationInfoShortcut(c, launcher, iconTypeIndex,
+                                iconPackageIndex, iconResourceIndex, iconIndex);
+                    }
+
+                    if (info == null) {
+                        info = new ApplicationInfo();
+                        info.icon = manager.getDefaultActivityIcon();
+                    }
+
+                    info.title = c.getString(titleIndex);
+                    info.intent = intent;
+                    info.id = c.getLong(idIndex);
+                    info.container = LauncherSettings.Favorites.CONTAINER_DESKTOP;
+                    info.screen = c.getInt(screenIndex);
+                    info.cellX = c.getInt(cellXIndex);
+                    info.cellY = c.getInt(cellYIndex);
+
+                    rows.put(info.id, info);
+                }
+            } finally {
+                c.close();
+            }
+
+            return rows;
+        }
+    }
+
+    private LauncherAppWidgetInfo findDesktopAppWidgetById(long id) {
+        final ArrayList<LauncherAppWidgetInfo> appWidgets = mDesktopAppWidgets;
+        final int count = appWidgets.size();
+        for (int i = 0; i < count; i++) {
+            final LauncherAppWidgetInfo info = appWidgets.get(i);
+            if (info.id == id) return info;
+        }
+        return null;
+    }
+
+    private ItemInfo findDesktopItemById(long id) {
+        final ArrayList<ItemInfo> desktopItems = mDesktopItems;
+        final int count = desktopItems.size();
+        for (int i = 0; i < count; i++) {
+            final ItemInfo item = desktopItems.get(i);
+            if (item.id == id) return item;
+        }
+        return null;
+    }
+
+    private boolean isInUserFolder(long id) {
+        for (FolderInfo folder : mFolders.values()) {
+            if (folder instanceof UserFolderInfo) {
+                final ArrayList<ApplicationInfo> contents = ((UserFolderInfo) folder).contents;
+                final int count = contents.size();
+                for (int i = 0; i < count; i++) {
+                    if (contents.get(i).id == id) return true;
+                }
+            }
+        }
+        return false;
+    }
+
     private static void updateShortcutLabels(ContentResolver resolver, PackageManager manager) {
         final Cursor c = resolver.query(LauncherSettings.Favorites.CONTENT_URI,
                 new String[] { LauncherSettings.Favorites._ID, LauncherSettings.Favorites.TITLE,
@@ -662,6 +1408,7 @@ public class LauncherModel {
         final int titleIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE);
 
         // boolean changed = false;
+        final FavoritesBatch batch = new FavoritesBatch();
 
         try {
             while (c.moveToNext()) {
@@ -685,10 +1432,7 @@ public class LauncherModel {
                                     final ContentValues values = new ContentValues();
                                     values.put(LauncherSettings.Favorites.TITLE, label);
 
-                                    resolver.update(
-                                            LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION,
-                                            values, "_id=?",
-                                            new String[] { String.valueOf(c.getLong(idIndex)) });
+                                    batch.update(c.getLong(idIndex), values, false);
 
                                     // changed = true;
                                 }
@@ -705,6 +1449,9 @@ public class LauncherModel {
             c.close();
         }
 
+        // All the labels in one transaction
+        batch.apply(resolver);
+
         // if (changed) resolver.notifyChange(Settings.Favorites.CONTENT_URI, null);
     }
 
@@ -753,10 +1500,15 @@ public class LauncherModel {
 
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
 
+            final long loaderStart = LoaderStats.start();
+
             final Launcher launcher = mLauncher.get();
             final ContentResolver contentResolver = launcher.getContentResolver();
             final PackageManager manager = launcher.getPackageManager();
 
+            // The rows must reflect the changes the UI made so far
+            sDatabaseWriter.flush();
+
             if (mLocaleChanged) {
                 updateShortcutLabels(contentResolver, manager);
             }
@@ -768,8 +1520,17 @@ public class LauncherModel {
             final ArrayList<ItemInfo> desktopItems = mDesktopItems;
             final ArrayList<LauncherAppWidgetInfo> desktopAppWidgets = mDesktopAppWidgets;
 
+            // Only the items of the current screen, of the dock and of the action
+            // buttons get their icon loaded before binding, the others are resolved
+            // once the workspace is usable
+            final int currentScreen = Launcher.getScreen();
+            final ArrayList<PendingIcon> pendingIcons = new ArrayList<PendingIcon>();
+            Bitmap placeholder = null;
+
+            final long queryStart = LoaderStats.start();
             final Cursor c = contentResolver.query(
-                    LauncherSettings.Favorites.CONTENT_URI, null, null, null, null);
+                    LauncherSettings.Favorites.CONTENT_URI, DESKTOP_ITEMS_PROJECTION,
+                    null, null, null);
 
             try {
                 final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
@@ -814,7 +1575,24 @@ public class LauncherModel {
                                 continue;
                             }
 
-                            if (itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                            container = c.getInt(containerIndex);
+                            final boolean defer =
+                                    container == LauncherSettings.Favorites.CONTAINER_DESKTOP &&
+                                    c.getInt(screenIndex) != currentScreen &&
+                                    (itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION ||
+                                    c.getInt(iconTypeIndex) ==
+                                            LauncherSettings.Favorites.ICON_TYPE_RESOURCE);
+
+                            if (defer) {
+                                if (placeholder == null) {
+                                    placeholder = Utilities.createIconBitmap(
+                                            manager.getDefaultActivityIcon(), launcher);
+                                }
+                                info = makePendingApplicationInfo(c, itemType, intent,
+                                        iconPackageIndex, iconResourceIndex, placeholder,
+                                        pendingIcons);
+                            } else if (itemType ==
+                                    LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
                                 info = getApplicationInfo(manager, intent, launcher);
                             } else {
                                 info = getApplicationInfoShortcut(c, launcher, iconTypeIndex,
@@ -831,7 +1609,6 @@ public class LauncherModel {
                                 info.intent = intent;
 
                                 info.id = c.getLong(idIndex);
-                                container = c.getInt(containerIndex);
                                 info.container = container;
                                 info.screen = c.getInt(screenIndex);
                                 info.cellX = c.getInt(cellXIndex);
@@ -961,6 +1738,12 @@ public class LauncherModel {
             } finally {
                 c.close();
             }
+            LoaderStats.end(LoaderStats.PHASE_DESKTOP_QUERY, queryStart);
+
+            if (!mStopped) {
+                // Spare the UI thread the reflections of the dock and the action buttons
+                warmDerivedIcons(launcher, desktopItems);
+            }
 
             synchronized(LauncherModel.this) {
                 if (!mStopped) {
@@ -977,10 +1760,17 @@ public class LauncherModel {
                     final ArrayList<LauncherAppWidgetInfo> uiDesktopWidgets =
                             new ArrayList<LauncherAppWidgetInfo>(desktopAppWidgets);
 
+                    LoaderStats.add(LoaderStats.COUNTER_DESKTOP_ITEMS,
+                            desktopItems.size() + desktopAppWidgets.size());
+
+                    sDesktopOccupancy.reset(desktopItems, desktopAppWidgets);
+
                     if (!mStopped) {
                         d(LOG_TAG, "  ----> items cloned, ready to refresh UI");
+                        final long postTime = LoaderStats.start();
                         launcher.runOnUiThread(new Runnable() {
                             public void run() {
+                                LoaderStats.end(LoaderStats.PHASE_UI_POST, postTime);
                                 if (DEBUG_LOADERS) d(LOG_TAG, "  ----> onDesktopItemsLoaded()");
                                 launcher.onDesktopItemsLoaded(uiDesktopItems, uiDesktopWidgets);
                             }
@@ -995,12 +1785,131 @@ public class LauncherModel {
                     }
 
                     mDesktopItemsLoaded = true;
+                    LoaderStats.end(LoaderStats.PHASE_DESKTOP_LOADER, loaderStart);
                 } else {
                     if (DEBUG_LOADERS) d(LOG_TAG, "  ----> worskpace loader was stopped");
                 }
             }
+
+            if (!mStopped && pendingIcons.size() > 0) {
+                loadPendingIcons(launcher, manager, pendingIcons, currentScreen);
+            }
+
             mRunning = false;
         }
+
+        /**
+         * Loads the icons that were not loaded before binding, starting with the
+         * screens closest to the current one, and patches the bound views.
+         */
+        private void loadPendingIcons(final Launcher launcher, PackageManager manager,
+                ArrayList<PendingIcon> pendingIcons, final int currentScreen) {
+
+            android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            final long start = LoaderStats.start();
+
+            Collections.sort(pendingIcons, new Comparator<PendingIcon>() {
+                public int compare(PendingIcon a, PendingIcon b) {
+                    return Math.abs(a.info.screen - currentScreen) -
+                            Math.abs(b.info.screen - currentScreen);
+                }
+            });
+
+            final int count = pendingIcons.size();
+            ArrayList<PendingIcon> batch = new ArrayList<PendingIcon>(PENDING_ICONS_BATCH);
+
+            for (int i = 0; i < count && !mStopped; i++) {
+                final PendingIcon pending = pendingIcons.get(i);
+                pending.resolve(LauncherModel.this, launcher, manager);
+                batch.add(pending);
+
+                if (batch.size() >= PENDING_ICONS_BATCH || i == count - 1) {
+                    final ArrayList<PendingIcon> resolved = batch;
+                    launcher.runOnUiThread(new Runnable() {
+                        public void run() {
+                            for (PendingIcon icon : resolved) {
+                                icon.info.icon = icon.icon;
+                                icon.info.filtered = true;
+                                launcher.updateShortcutIcon(icon.info);
+                            }
+                        }
+                    });
+                    batch = new ArrayList<PendingIcon>(PENDING_ICONS_BATCH);
+                }
+            }
+
+            LoaderStats.end(LoaderStats.PHASE_PENDING_ICONS, start);
+            if (DEBUG_LOADERS) d(LOG_TAG, "  ----> loaded " + count + " pending icons");
+        }
+    }
+
+    /**
+     * An application or shortcut bound with a placeholder icon whose real icon
+     * is loaded after the workspace is shown.
+     */
+    private static class PendingIcon {
+        final ApplicationInfo info;
+        final Intent intent;
+        Drawable icon;
+
+        PendingIcon(ApplicationInfo info, Intent intent) {
+            this.info = info;
+            this.intent = intent;
+        }
+
+        /**
+         * Loads the icon. The result is stored in {@link #icon} and must be
+         * transferred to the item on the UI thread.
+         */
+        void resolve(LauncherModel model, Context context, PackageManager manager) {
+            Drawable drawable = null;
+            try {
+                if (info.itemType == LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                    final ResolveInfo resolveInfo = manager.resolveActivity(intent, 0);
+                    if (resolveInfo != null) {
+                        icon = model.loadDesktopIcon(manager, resolveInfo.activityInfo,
+                                context);
+                        return;
+                    }
+                } else if (info.iconResource != null) {
+                    final Resources resources = manager.getResourcesForApplication(
+                            info.iconResource.packageName);
+                    final int id = resources.getIdentifier(info.iconResource.resourceName,
+                            null, null);
+                    drawable = resources.getDrawable(id);
+                }
+            } catch (Exception e) {
+                // Fall back to the default icon below
+            }
+
+            if (drawable == null) drawable = manager.getDefaultActivityIcon();
+            icon = new FastBitmapDrawable(Utilities.createIconBitmap(drawable, context));
+        }
+    }
+
+    /**
+     * Makes an application or a shortcut whose icon is loaded later, see
+     * {@link PendingIcon}. Only resource based icons can be loaded later.
+     */
+    private static ApplicationInfo makePendingApplicationInfo(Cursor c, int itemType,
+            Intent intent, int iconPackageIndex, int iconResourceIndex, Bitmap placeholder,
+            ArrayList<PendingIcon> pendingIcons) {
+
+        final ApplicationInfo info = new ApplicationInfo();
+        info.itemType = itemType;
+        info.icon = new FastBitmapDrawable(placeholder);
+        info.filtered = true;
+
+        if (itemType == LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT) {
+            info.iconResource = new Intent.ShortcutIconResource();
+            info.iconResource.packageName = c.getString(iconPackageIndex);
+            info.iconResource.resourceName = c.getString(iconResourceIndex);
+            info.customIcon = false;
+        }
+
+        pendingIcons.add(new PendingIcon(info, intent));
+        return info;
     }
 
     private static void loadLiveFolderIcon(Launcher launcher, Cursor c, int iconTypeIndex,
@@ -1101,13 +2010,45 @@ public class LauncherModel {
                 switch (item.itemType) {
                 case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
                 case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
-                    ((ApplicationInfo)item).icon.setCallback(null);
+                    final Drawable icon = ((ApplicationInfo)item).icon;
+                    if (icon != null) icon.setCallback(null);
                     break;
                 }
             }
         }
     }
 
+    /**
+     * Returns the icons of the specified items, and of the content of their
+     * folders, to the bitmap pool. Must only be invoked once the views of the
+     * items were removed. The items present in the second list, which can be
+     * null, are still bound and are skipped.
+     */
+    static void releaseDrawables(ArrayList<ItemInfo> items, ArrayList<ItemInfo> bound) {
+        final IdentityHashMap<ItemInfo, Boolean> keep = new IdentityHashMap<ItemInfo, Boolean>();
+        if (bound != null) {
+            for (ItemInfo item : bound) {
+                keep.put(item, Boolean.TRUE);
+                if (item instanceof UserFolderInfo) {
+                    for (ApplicationInfo info : ((UserFolderInfo) item).contents) {
+                        keep.put(info, Boolean.TRUE);
+                    }
+                }
+            }
+        }
+
+        for (ItemInfo item : items) {
+            if (keep.containsKey(item)) continue;
+            if (item instanceof ApplicationInfo) {
+                FastBitmapDrawable.release(((ApplicationInfo) item).icon);
+            } else if (item instanceof UserFolderInfo) {
+                for (ApplicationInfo info : ((UserFolderInfo) item).contents) {
+                    if (!keep.containsKey(info)) FastBitmapDrawable.release(info.icon);
+                }
+            }
+        }
+    }
+
     /**
      * Remove the callback for the cached drawables or we leak the previous
      * Home screen on orientation change.
@@ -1116,7 +2057,8 @@ public class LauncherModel {
         if (applications != null) {
             final int count = applications.size();
             for (int i = 0; i < count; i++) {
-                applications.get(i).icon.setCallback(null);
+                final Drawable icon = applications.get(i).icon;
+                if (icon != null) icon.setCallback(null);
             }
         }
     }
@@ -1140,47 +2082,23 @@ public class LauncherModel {
      */
     private void unbindCachedIconDrawables() {
         for (ApplicationInfo appInfo : mAppInfoCache.values()) {
-            appInfo.icon.setCallback(null);
+            if (appInfo.icon != null) appInfo.icon.setCallback(null);
         }
+        // The views that pinned the icons are gone
+        mAppInfoCache.unpinAll();
     }
 
     /**
-     * Fills in the occupied structure with all of the shortcuts, apps, folders and widgets in
-     * the model. 
+     * Returns the cells occupied by the shortcuts, apps, folders and widgets
+     * of the specified screen, indexed by row with one bit per column. The
+     * database is only read if the desktop was never loaded nor read.
      */
-    void findAllOccupiedCells(boolean[][] occupied, int countX, int countY, int screen) {
-        final ArrayList<ItemInfo> desktopItems = mDesktopItems;
-        if (desktopItems != null) {
-            final int count = desktopItems.size();
-            for (int i = 0; i < count; i++) {
-                ItemInfo item = desktopItems.get(i);
-                addOccupiedCells(occupied, screen, desktopItems.get(i));
-            }
-        }
-        
-        final ArrayList<LauncherAppWidgetInfo> desktopAppWidgets = mDesktopAppWidgets;
-        if (desktopAppWidgets != null) {
-            final int count = desktopAppWidgets.size();
-            for (int i = 0; i < count; i++) {
-                addOccupiedCells(occupied, screen, desktopAppWidgets.get(i));
-            }
-        }
+    static long[] getOccupiedCells(Context context, int screen) {
+        if (!sDesktopOccupancy.isLoaded()) sDatabaseWriter.flush();
+        sDesktopOccupancy.ensureLoaded(context.getContentResolver());
+        return sDesktopOccupancy.getOccupiedRows(screen);
     }
 
-    /**
-     * Add the footprint of the specified item to the occupied array
-     */
-    private void addOccupiedCells(boolean[][] occupied, int screen,
-            ItemInfo item) {
-        if (item.screen == screen) {
-            for (int xx = item.cellX; xx < item.cellX + item.spanX; xx++) {
-                for (int yy = item.cellY; yy < item.cellY + item.spanY; yy++) {
-                    occupied[xx][yy] = true;
-                }
-            }
-        }
-    }
-    
     /**
      * @return The current list of applications
      */
@@ -1209,6 +2127,7 @@ public class LauncherModel {
     void addDesktopItem(ItemInfo info) {
         // TODO: write to DB; also check that folder has been added to folders list
         mDesktopItems.add(info);
+        sDesktopOccupancy.update(info);
     }
 
     /**
@@ -1218,6 +2137,7 @@ public class LauncherModel {
     void removeDesktopItem(ItemInfo info) {
         // TODO: write to DB; figure out if we should remove folder from folders list
         mDesktopItems.remove(info);
+        sDesktopOccupancy.remove(info.id);
     }
 
     /**
@@ -1225,6 +2145,7 @@ public class LauncherModel {
      */
     void addDesktopAppWidget(LauncherAppWidgetInfo info) {
         mDesktopAppWidgets.add(info);
+        sDesktopOccupancy.update(info);
     }
 
     /**
@@ -1232,13 +2153,14 @@ public class LauncherModel {
      */
     void removeDesktopAppWidget(LauncherAppWidgetInfo info) {
         mDesktopAppWidgets.remove(info);
+        sDesktopOccupancy.remove(info.id);
     }
 
     /**
      * Make an ApplicationInfo object for an application
      */
-    private static ApplicationInfo getApplicationInfo(PackageManager manager, Intent intent,
-                                                      Context context) {
+    private ApplicationInfo getApplicationInfo(PackageManager manager, Intent intent,
+            Context context) {
         final ResolveInfo resolveInfo = manager.resolveActivity(intent, 0);
 
         if (resolveInfo == null) {
@@ -1247,7 +2169,8 @@ public class LauncherModel {
 
         final ApplicationInfo info = new ApplicationInfo();
         final ActivityInfo activityInfo = resolveInfo.activityInfo;
-        info.icon = Utilities.createIconThumbnail(activityInfo.loadIcon(manager), context);
+        info.icon = loadDesktopIcon(manager, activityInfo, context);
+        info.filtered = true;
         if (info.title == null || info.title.length() == 0) {
             info.title = activityInfo.loadLabel(manager);
         }
@@ -1287,11 +2210,15 @@ public class LauncherModel {
                 break;
             case LauncherSettings.Favorites.ICON_TYPE_BITMAP:
                 byte[] data = c.getBlob(iconIndex);
+                Bitmap bitmap = null;
                 try {
-                    Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-                    info.icon = new FastBitmapDrawable(
-                            Utilities.createBitmapThumbnail(bitmap, context));
+                    bitmap = mShortcutIconCache.getThumbnail(data, context);
                 } catch (Exception e) {
+                    // Ignore, use the default icon
+                }
+                if (bitmap != null) {
+                    info.icon = new FastBitmapDrawable(bitmap);
+                } else {
                     packageManager = context.getPackageManager();
                     info.icon = packageManager.getDefaultActivityIcon();
                 }
@@ -1348,14 +2275,14 @@ public class LauncherModel {
         item.cellY = cellY;
 
         final ContentValues values = new ContentValues();
-        final ContentResolver cr = context.getContentResolver();
 
         values.put(LauncherSettings.Favorites.CONTAINER, item.container);
         values.put(LauncherSettings.Favorites.CELLX, item.cellX);
         values.put(LauncherSettings.Favorites.CELLY, item.cellY);
         values.put(LauncherSettings.Favorites.SCREEN, item.screen);
 
-        cr.update(LauncherSettings.Favorites.getContentUri(item.id, false), values, null, null);
+        sDatabaseWriter.update(context, item.id, values);
+        sDesktopOccupancy.update(item);
     }
 
     /**
@@ -1363,6 +2290,7 @@ public class LauncherModel {
      * we identify a shortcut by its title and intent.
      */
     static boolean shortcutExists(Context context, String title, Intent intent) {
+        sDatabaseWriter.flush();
         final ContentResolver cr = context.getContentResolver();
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI,
             new String[] { "title", "intent" }, "title=? and intent=?",
@@ -1377,8 +2305,9 @@ public class LauncherModel {
     }
 
     FolderInfo getFolderById(Context context, long id) {
+        sDatabaseWriter.flush();
         final ContentResolver cr = context.getContentResolver();
-        Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, null,
+        Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI, FOLDER_PROJECTION,
                 "_id=? and (itemType=? or itemType=?)",
                 new String[] { String.valueOf(id),
                         String.valueOf(LauncherSettings.Favorites.ITEM_TYPE_USER_FOLDER),
@@ -1421,7 +2350,8 @@ public class LauncherModel {
 
     /**
      * Add an item to the database in a specified container. Sets the container, screen, cellX and
-     * cellY fields of the item. Also assigns an ID to the item.
+     * cellY fields of the item. Also assigns an ID to the item. The item is written behind the
+     * UI, see {@link DatabaseWriter}.
      */
     static void addItemToDatabase(Context context, ItemInfo item, long container,
             int screen, int cellX, int cellY, boolean notify) {
@@ -1435,12 +2365,59 @@ public class LauncherModel {
 
         item.onAddToDatabase(values);
 
+        final long id = LauncherProvider.generateNewId();
+        if (id != ItemInfo.NO_ID) {
+            // Written behind the UI, the id is known right away
+            item.id = id;
+            values.put(LauncherSettings.Favorites._ID, id);
+            sDatabaseWriter.insert(context, id, values, notify);
+            sDesktopOccupancy.update(item);
+            return;
+        }
+
         Uri result = cr.insert(notify ? LauncherSettings.Favorites.CONTENT_URI :
                 LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION, values);
 
         if (result != null) {
             item.id = Integer.parseInt(result.getPathSegments().get(1));
+            sDesktopOccupancy.update(item);
+        }
+    }
+
+    /**
+     * Adds the specified items to the database in a single transaction, with
+     * a single notification. Their container, screen, cellX and cellY fields
+     * must be set. Assigns an ID to the items, they are bound when the
+     * desktop reloads.
+     *
+     * @return True if the items were added.
+     */
+    static boolean addItemsToDatabase(Context context, ArrayList<? extends ItemInfo> items) {
+        final FavoritesBatch batch = new FavoritesBatch();
+        final int count = items.size();
+        for (int i = 0; i < count; i++) {
+            final ContentValues values = new ContentValues();
+            items.get(i).onAddToDatabase(values);
+            batch.insert(values, true);
+        }
+
+        if (!batch.apply(context.getContentResolver())) {
+            w(LOG_TAG, "Could not add " + count + " items to the database");
+            return false;
+        }
+
+        final long[] ids = batch.getInsertedIds();
+        if (ids == null) {
+            // The cells of the new items are unknown, read them again
+            sDesktopOccupancy.invalidate();
+            return true;
         }
+        for (int i = 0; i < count; i++) {
+            final ItemInfo item = items.get(i);
+            item.id = ids[i];
+            sDesktopOccupancy.update(item);
+        }
+        return true;
     }
 
     /**
@@ -1468,11 +2445,11 @@ public class LauncherModel {
      */
     static void updateItemInDatabase(Context context, ItemInfo item) {
         final ContentValues values = new ContentValues();
-        final ContentResolver cr = context.getContentResolver();
 
         item.onAddToDatabase(values);
 
-        cr.update(LauncherSettings.Favorites.getContentUri(item.id, false), values, null, null);
+        sDatabaseWriter.update(context, item.id, values);
+        sDesktopOccupancy.update(item);
     }
 
     /**
@@ -1481,9 +2458,8 @@ public class LauncherModel {
      * @param item
      */
     static void deleteItemFromDatabase(Context context, ItemInfo item) {
-        final ContentResolver cr = context.getContentResolver();
-
-        cr.delete(LauncherSettings.Favorites.getContentUri(item.id, false), null, null);
+        sDatabaseWriter.delete(context, item.id, false);
+        sDesktopOccupancy.remove(item.id);
     }
 
 
@@ -1491,11 +2467,24 @@ public class LauncherModel {
      * Remove the contents of the specified folder from the database
      */
     static void deleteUserFolderContentsFromDatabase(Context context, UserFolderInfo info) {
-        final ContentResolver cr = context.getContentResolver();
+        sDatabaseWriter.delete(context, info.id, true);
+        sDesktopOccupancy.remove(info.id);
+    }
 
-        cr.delete(LauncherSettings.Favorites.getContentUri(info.id, false), null, null);
-        cr.delete(LauncherSettings.Favorites.CONTENT_URI,
-                LauncherSettings.Favorites.CONTAINER + "=" + info.id, null);
+    /**
+     * Frees the cells of the item of the specified id after it was deleted
+     * from the database directly.
+     */
+    static void onItemDeleted(long id) {
+        sDesktopOccupancy.remove(id);
+    }
+
+    /**
+     * Writes the pending moves, updates and deletes of the favorites to the
+     * database before it is read outside of the model.
+     */
+    static void flushDatabaseWrites() {
+        sDatabaseWriter.flush();
     }
 
     static void deleteGestureFromDatabase(Context context, ItemInfo item) {
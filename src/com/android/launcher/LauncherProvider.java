@@ -37,6 +37,8 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.Cursor;
 import android.database.SQLException;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.util.Log;
 import android.util.Xml;
 import android.util.AttributeSet;
@@ -45,9 +47,14 @@ import android.text.TextUtils;
 import android.os.*;
 import android.provider.Settings;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParser;
@@ -60,7 +67,7 @@ public class LauncherProvider extends ContentProvider {
 
     private static final String DATABASE_NAME = "launcher.db";
     
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 6;
 
     static final String AUTHORITY = "com.android.launcher.settings";
     
@@ -69,6 +76,7 @@ public class LauncherProvider extends ContentProvider {
 
     static final String TABLE_FAVORITES = "favorites";
     static final String TABLE_GESTURES = "gestures";
+    static final String TABLE_ICONS = "icons";
     static final String PARAMETER_NOTIFY = "notify";
 
     /**
@@ -78,12 +86,265 @@ public class LauncherProvider extends ContentProvider {
      */
     static final Uri CONTENT_APPWIDGET_RESET_URI =
             Uri.parse("content://" + AUTHORITY + "/appWidgetReset");
+
+    /**
+     * {@link Uri} of the batches of writes to the favorites, see {@link FavoritesBatch}.
+     * The rows given to {@link #bulkInsert(Uri, ContentValues[])} are operations,
+     * applied in a single transaction with a single notification.
+     */
+    static final String PATH_BATCH = "batch";
+    static final Uri CONTENT_BATCH_URI = Uri.parse("content://" + AUTHORITY + "/" + PATH_BATCH);
+
+    // Columns describing an operation of a batch, removed before the row is written
+    static final String BATCH_OPERATION = "batchOperation";
+    static final String BATCH_SELECTION = "batchSelection";
+    static final String BATCH_NOTIFY = "batchNotify";
+
+    static final int BATCH_INSERT = 0;
+    static final int BATCH_UPDATE = 1;
+    static final int BATCH_DELETE = 2;
     
+    /**
+     * Maximum number of rows recorded in the journal of changes before
+     * giving up and reporting that everything changed.
+     */
+    private static final int MAX_CHANGED_IDS = 32;
+
+    // Journal of the favorites modified by notifying writes, see takeChangedIds()
+    private static final Object sChangesLock = new Object();
+    private static final HashSet<Long> sChangedIds = new HashSet<Long>();
+    private static boolean sChangedAll;
+    private static boolean sJournalEnabled;
+
+    // Ids of the rows inserted by the last batch applied on the calling thread
+    private static final ThreadLocal<long[]> sInsertedIds = new ThreadLocal<long[]>();
+
+    // Columns of the icons table. The custom icons of the favorites are stored
+    // once per content, keyed by a digest of the scaled PNG
+    private static final String ICON_HASH = "iconHash";
+    private static final String ICON_DATA = "iconData";
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    // The favorites along with their custom icon, queried when the icon is requested
+    private static final String TABLE_FAVORITES_WITH_ICONS = TABLE_FAVORITES +
+            " LEFT OUTER JOIN " + TABLE_ICONS + " USING (" + Favorites.ICON_ID + ")";
+
+    private static final HashMap<String, String> sFavoritesWithIconsProjectionMap =
+            new HashMap<String, String>();
+
+    static {
+        final String[] columns = new String[] {
+                Favorites._ID, Favorites.TITLE, Favorites.INTENT, Favorites.CONTAINER,
+                Favorites.SCREEN, Favorites.CELLX, Favorites.CELLY, Favorites.SPANX,
+                Favorites.SPANY, Favorites.ITEM_TYPE, Favorites.APPWIDGET_ID,
+                Favorites.IS_SHORTCUT, Favorites.ICON_TYPE, Favorites.ICON_PACKAGE,
+                Favorites.ICON_RESOURCE, Favorites.URI, Favorites.DISPLAY_MODE,
+                Favorites.ICON_ID
+        };
+        for (String column : columns) {
+            sFavoritesWithIconsProjectionMap.put(column, column);
+        }
+        // The icons the upgrade to version 5 could not move are still in the favorites
+        sFavoritesWithIconsProjectionMap.put(Favorites.ICON, "COALESCE(" + ICON_DATA + ", " +
+                TABLE_FAVORITES + "." + Favorites.ICON + ") AS " + Favorites.ICON);
+    }
+
+    // Highest id given to a favorite, -1 until read from the database. The
+    // provider allocates the ids so that a client can know them in advance
+    private static final Object sIdLock = new Object();
+    private static long sMaxId = -1;
+    private static LauncherProvider sInstance;
+
     private SQLiteOpenHelper mOpenHelper;
 
     @Override
     public boolean onCreate() {
         mOpenHelper = new DatabaseHelper(getContext());
+        synchronized (sChangesLock) {
+            // The journal can only be read from the process hosting the provider
+            sJournalEnabled = true;
+        }
+        synchronized (sIdLock) {
+            sInstance = this;
+        }
+        return true;
+    }
+
+    /**
+     * Allocates the id of a favorite about to be inserted, which lets the
+     * caller write it later. The id is never given to another favorite. The
+     * ids can only be allocated from the process hosting the provider.
+     *
+     * @return The new id, or {@link ItemInfo#NO_ID} if it cannot be allocated.
+     */
+    static long generateNewId() {
+        final LauncherProvider provider;
+        synchronized (sIdLock) {
+            provider = sInstance;
+        }
+        if (provider == null) return ItemInfo.NO_ID;
+
+        ensureMaxId(provider.mOpenHelper.getWritableDatabase());
+        synchronized (sIdLock) {
+            return ++sMaxId;
+        }
+    }
+
+    /**
+     * Reads the highest id of the favorites unless it is known already. The
+     * database is not read while holding sIdLock, the writers lock the
+     * database first.
+     */
+    private static void ensureMaxId(SQLiteDatabase db) {
+        synchronized (sIdLock) {
+            if (sMaxId >= 0) return;
+        }
+        final long maxId = readMaxId(db);
+        synchronized (sIdLock) {
+            if (sMaxId < maxId) sMaxId = maxId;
+        }
+    }
+
+    /**
+     * Reads the highest id of the favorites unless it is known already. The
+     * caller holds the lock of the database, in a transaction.
+     */
+    private static void ensureMaxIdLocked(SQLiteDatabase db) {
+        if (sMaxId < 0) sMaxId = readMaxId(db);
+    }
+
+    private static long readMaxId(SQLiteDatabase db) {
+        final Cursor c = db.rawQuery("SELECT MAX(" + Favorites._ID + ") FROM " +
+                TABLE_FAVORITES, null);
+        try {
+            return c.moveToNext() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Gives an id to the specified favorite unless the caller allocated one.
+     */
+    private static ContentValues assignId(SQLiteDatabase db, ContentValues values) {
+        synchronized (sIdLock) {
+            ensureMaxIdLocked(db);
+            final Long id = values.getAsLong(Favorites._ID);
+            if (id == null) {
+                values = new ContentValues(values);
+                values.put(Favorites._ID, ++sMaxId);
+            } else if (id > sMaxId) {
+                sMaxId = id;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the ids of the favorites inserted, updated or deleted with a
+     * notifying URI since the last call, and clears the journal.
+     *
+     * @return The ids of the changed rows, an empty array if nothing changed or
+     *         null if the changes are unknown and everything must be reloaded.
+     */
+    static long[] takeChangedIds() {
+        synchronized (sChangesLock) {
+            if (!sJournalEnabled || sChangedAll) {
+                sChangedAll = false;
+                sChangedIds.clear();
+                return null;
+            }
+
+            final long[] ids = new long[sChangedIds.size()];
+            int i = 0;
+            for (Long id : sChangedIds) {
+                ids[i++] = id;
+            }
+            sChangedIds.clear();
+            return ids;
+        }
+    }
+
+    /**
+     * Returns the ids of the favorites inserted, in order, by the last batch
+     * applied on the calling thread and forgets them. The ids are only known
+     * when the batch is applied from the process hosting the provider.
+     *
+     * @return The ids of the inserted rows or null if they are unknown.
+     */
+    static long[] takeInsertedIds() {
+        final long[] ids = sInsertedIds.get();
+        sInsertedIds.set(null);
+        return ids;
+    }
+
+    private static void recordChange(long id) {
+        synchronized (sChangesLock) {
+            if (sChangedAll) return;
+            sChangedIds.add(id);
+            if (sChangedIds.size() > MAX_CHANGED_IDS) {
+                sChangedAll = true;
+                sChangedIds.clear();
+            }
+        }
+    }
+
+    /**
+     * Reports that every favorite may have changed, the next changes taken
+     * from the journal cause a full reload.
+     */
+    static void recordChangeAll() {
+        synchronized (sChangesLock) {
+            sChangedAll = true;
+            sChangedIds.clear();
+        }
+    }
+
+    /**
+     * Records in the journal the favorites about to be modified by an update
+     * or a delete on the specified URI.
+     */
+    private static void recordChanges(SQLiteDatabase db, Uri uri, SqlArguments args) {
+        if (!TABLE_FAVORITES.equals(args.table) || !isNotifying(uri)) return;
+
+        if (uri.getPathSegments().size() == 2) {
+            recordChange(ContentUris.parseId(uri));
+            return;
+        }
+
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        if (findChangedIds(db, args.where, args.args, ids)) {
+            recordChanges(ids);
+        } else {
+            recordChangeAll();
+        }
+    }
+
+    private static void recordChanges(ArrayList<Long> ids) {
+        final int count = ids.size();
+        for (int i = 0; i < count; i++) {
+            recordChange(ids.get(i));
+        }
+    }
+
+    /**
+     * Adds to the specified list the ids of the favorites matching the
+     * specified selection.
+     *
+     * @return False if there are too many favorites to journal them.
+     */
+    private static boolean findChangedIds(SQLiteDatabase db, String where, String[] whereArgs,
+            ArrayList<Long> ids) {
+        final Cursor c = db.query(TABLE_FAVORITES, new String[] { Favorites._ID }, where,
+                whereArgs, null, null, null);
+        try {
+            if (ids.size() + c.getCount() > MAX_CHANGED_IDS) return false;
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
         return true;
     }
 
@@ -103,9 +364,16 @@ public class LauncherProvider extends ContentProvider {
 
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(args.table);
+        if (TABLE_FAVORITES.equals(args.table) && isIconRequested(projection)) {
+            qb.setTables(TABLE_FAVORITES_WITH_ICONS);
+            qb.setProjectionMap(sFavoritesWithIconsProjectionMap);
+        } else {
+            qb.setTables(args.table);
+        }
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // Read once by the loaders, the ids are then allocated without I/O
+        if (TABLE_FAVORITES.equals(args.table)) ensureMaxId(db);
         Cursor result = qb.query(db, projection, args.where, args.args, null, null, sortOrder);
         result.setNotificationUri(getContext().getContentResolver(), uri);
 
@@ -117,9 +385,21 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        final long rowId = db.insert(args.table, null, initialValues);
-        if (rowId <= 0) return null;
+        final long rowId;
+        // The icon row must not be released before the favorite refers to it
+        db.beginTransaction();
+        try {
+            if (TABLE_FAVORITES.equals(args.table)) {
+                initialValues = assignId(db, storeIcon(db, initialValues, getContext()));
+            }
+            rowId = db.insert(args.table, null, initialValues);
+            if (rowId <= 0) return null;
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
+        if (TABLE_FAVORITES.equals(args.table) && isNotifying(uri)) recordChange(rowId);
         uri = ContentUris.withAppendedId(uri, rowId);
         sendNotify(uri);
 
@@ -128,30 +408,150 @@ public class LauncherProvider extends ContentProvider {
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (PATH_BATCH.equals(uri.getPathSegments().get(0))) {
+            return applyBatch(values);
+        }
+
         SqlArguments args = new SqlArguments(uri);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final boolean favorites = TABLE_FAVORITES.equals(args.table);
+        final boolean record = favorites && isNotifying(uri);
+        final ArrayList<Long> ids = new ArrayList<Long>();
+
         db.beginTransaction();
         try {
             int numValues = values.length;
             for (int i = 0; i < numValues; i++) {
-                if (db.insert(args.table, null, values[i]) < 0) return 0;
+                final ContentValues row = favorites ?
+                        assignId(db, storeIcon(db, values[i], getContext())) : values[i];
+                final long rowId = db.insert(args.table, null, row);
+                // Nothing is written, the transaction is rolled back
+                if (rowId < 0) return 0;
+                if (record) ids.add(rowId);
             }
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
 
+        // Only journal the rows actually committed
+        recordChanges(ids);
         sendNotify(uri);
         return values.length;
     }
 
+    /**
+     * Applies the specified operations on the favorites in a single
+     * transaction. If one of them fails, none is applied. The notifying
+     * operations that changed rows are reported with a single notification.
+     *
+     * @return The number of operations, or 0 if the batch was rolled back.
+     */
+    private int applyBatch(ContentValues[] operations) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Context context = getContext();
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        final ArrayList<Long> insertedIds = new ArrayList<Long>();
+        boolean changedAll = false;
+        boolean notify = false;
+
+        sInsertedIds.set(null);
+        db.beginTransaction();
+        try {
+            boolean iconsReleased = false;
+            final int count = operations.length;
+            for (int i = 0; i < count; i++) {
+                ContentValues values = new ContentValues(operations[i]);
+                final Integer operation = values.getAsInteger(BATCH_OPERATION);
+                final String selection = values.getAsString(BATCH_SELECTION);
+                final boolean notifying = Boolean.TRUE.equals(values.getAsBoolean(BATCH_NOTIFY));
+                values.remove(BATCH_OPERATION);
+                values.remove(BATCH_SELECTION);
+                values.remove(BATCH_NOTIFY);
+
+                if (operation == null) {
+                    w(LOG_TAG, "Missing operation in batch, rolling back");
+                    return 0;
+                }
+
+                if (notifying && operation != BATCH_INSERT && !changedAll) {
+                    changedAll = !findChangedIds(db, selection, null, ids);
+                }
+
+                int changed;
+                switch (operation) {
+                    case BATCH_INSERT:
+                        values = assignId(db, storeIcon(db, values, context));
+                        final long rowId = db.insert(TABLE_FAVORITES, null, values);
+                        if (rowId < 0) {
+                            w(LOG_TAG, "Could not insert favorite in batch, rolling back");
+                            return 0;
+                        }
+                        if (notifying) ids.add(rowId);
+                        insertedIds.add(rowId);
+                        changed = 1;
+                        break;
+                    case BATCH_UPDATE:
+                        final boolean iconChanged = values.containsKey(Favorites.ICON);
+                        if (iconChanged) values = storeIcon(db, values, context);
+                        changed = db.update(TABLE_FAVORITES, values, selection, null);
+                        iconsReleased |= iconChanged;
+                        break;
+                    case BATCH_DELETE:
+                        changed = db.delete(TABLE_FAVORITES, selection, null);
+                        iconsReleased |= changed > 0;
+                        break;
+                    default:
+                        w(LOG_TAG, "Unknown operation in batch: " + operation);
+                        return 0;
+                }
+
+                notify |= notifying && changed > 0;
+            }
+
+            if (iconsReleased) deleteUnusedIcons(db);
+            db.setTransactionSuccessful();
+        } catch (SQLException e) {
+            w(LOG_TAG, "Could not apply batch, rolling back", e);
+            return 0;
+        } finally {
+            db.endTransaction();
+        }
+
+        final int inserted = insertedIds.size();
+        final long[] rowIds = new long[inserted];
+        for (int i = 0; i < inserted; i++) {
+            rowIds[i] = insertedIds.get(i);
+        }
+        sInsertedIds.set(rowIds);
+
+        if (changedAll) {
+            recordChangeAll();
+        } else {
+            recordChanges(ids);
+        }
+        if (notify) {
+            context.getContentResolver().notifyChange(Favorites.CONTENT_URI, null);
+        }
+        return operations.length;
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count = db.delete(args.table, args.where, args.args);
+        final int count;
+        db.beginTransaction();
+        try {
+            recordChanges(db, uri, args);
+            count = db.delete(args.table, args.where, args.args);
+            if (count > 0 && TABLE_FAVORITES.equals(args.table)) deleteUnusedIcons(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         if (count > 0) sendNotify(uri);
 
         return count;
@@ -162,19 +562,144 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count = db.update(args.table, values, args.where, args.args);
+        final int count;
+        db.beginTransaction();
+        try {
+            recordChanges(db, uri, args);
+            final boolean iconChanged = TABLE_FAVORITES.equals(args.table) &&
+                    values.containsKey(Favorites.ICON);
+            if (iconChanged) values = storeIcon(db, values, getContext());
+            count = db.update(args.table, values, args.where, args.args);
+            if (count > 0 && iconChanged) deleteUnusedIcons(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         if (count > 0) sendNotify(uri);
 
         return count;
     }
 
     private void sendNotify(Uri uri) {
-        String notify = uri.getQueryParameter(PARAMETER_NOTIFY);
-        if (notify == null || "true".equals(notify)) {
+        if (isNotifying(uri)) {
             getContext().getContentResolver().notifyChange(uri, null);
         }
     }
 
+    private static boolean isNotifying(Uri uri) {
+        String notify = uri.getQueryParameter(PARAMETER_NOTIFY);
+        return notify == null || "true".equals(notify);
+    }
+
+    private static boolean isIconRequested(String[] projection) {
+        if (projection == null) return true;
+        for (String column : projection) {
+            if (Favorites.ICON.equals(column)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves the custom icon of the specified values of a favorite to the icons
+     * table. The icon is scaled to the size of the thumbnails and stored once
+     * per content, the returned values reference it by {@link Favorites#ICON_ID}.
+     *
+     * @return The values to write, a copy of the specified ones if they held an icon.
+     */
+    private static ContentValues storeIcon(SQLiteDatabase db, ContentValues values,
+            Context context) {
+        if (values == null || !values.containsKey(Favorites.ICON)) return values;
+
+        final byte[] data = values.getAsByteArray(Favorites.ICON);
+        values = new ContentValues(values);
+        values.remove(Favorites.ICON);
+        if (data == null) {
+            values.putNull(Favorites.ICON_ID);
+            return values;
+        }
+
+        final long iconId = insertIcon(db, scaleIcon(data, context));
+        if (iconId >= 0) {
+            values.put(Favorites.ICON_ID, iconId);
+        } else {
+            values.putNull(Favorites.ICON_ID);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the id of the row of the icons table holding the specified encoded
+     * icon, inserting the row if there is none.
+     *
+     * @return The id of the icon, or -1 if it could not be stored.
+     */
+    private static long insertIcon(SQLiteDatabase db, byte[] icon) {
+        final String hash = digest(icon);
+
+        long iconId = -1;
+        if (hash != null) {
+            final Cursor c = db.query(TABLE_ICONS, new String[] { Favorites.ICON_ID },
+                    ICON_HASH + "=?", new String[] { hash }, null, null, null);
+            try {
+                if (c.moveToFirst()) iconId = c.getLong(0);
+            } finally {
+                c.close();
+            }
+        }
+
+        if (iconId < 0) {
+            final ContentValues iconValues = new ContentValues(2);
+            iconValues.put(ICON_HASH, hash);
+            iconValues.put(ICON_DATA, icon);
+            iconId = db.insert(TABLE_ICONS, null, iconValues);
+        }
+        return iconId;
+    }
+
+    /**
+     * Returns the specified encoded icon scaled to the size of the thumbnails,
+     * or the icon itself if it already has the right size or cannot be decoded.
+     */
+    private static byte[] scaleIcon(byte[] data, Context context) {
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (bitmap == null) return data;
+
+        final Bitmap thumbnail = Utilities.createBitmapThumbnail(bitmap, context);
+        if (thumbnail == bitmap) return data;
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                thumbnail.getWidth() * thumbnail.getHeight());
+        final boolean compressed = thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out);
+        BitmapPool.release(thumbnail);
+        return compressed ? out.toByteArray() : data;
+    }
+
+    private static String digest(byte[] data) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(LOG_TAG, "No " + DIGEST_ALGORITHM + " digest, icons are not shared");
+            return null;
+        }
+
+        final byte[] hash = digest.digest(data);
+        final StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+            builder.append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Deletes the icons no favorite references anymore.
+     */
+    private static void deleteUnusedIcons(SQLiteDatabase db) {
+        db.delete(TABLE_ICONS, Favorites.ICON_ID + " NOT IN (SELECT " + Favorites.ICON_ID +
+                " FROM " + TABLE_FAVORITES + " WHERE " + Favorites.ICON_ID + " NOT NULL)", null);
+    }
+
     private static class DatabaseHelper extends SQLiteOpenHelper {
         private static final String TAG_FAVORITES = "favorites";
         private static final String TAG_FAVORITE = "favorite";
@@ -224,9 +749,13 @@ public class LauncherProvider extends ContentProvider {
                     "iconResource TEXT," +
                     "icon BLOB," +
                     "uri TEXT," +
-                    "displayMode INTEGER" +
+                    "displayMode INTEGER," +
+                    "iconId INTEGER" +
                     ");");
 
+            createFavoritesIndexes(db);
+            createIconsTable(db);
+
             db.execSQL("CREATE TABLE gestures (" +
                     "_id INTEGER PRIMARY KEY," +
                     "title TEXT," +
@@ -250,6 +779,88 @@ public class LauncherProvider extends ContentProvider {
             }
         }
 
+        /**
+         * Creates the indexes of the columns the favorites are looked up by: the
+         * container and screen of the desktop items and folder contents, and the
+         * title and intent of the shortcuts.
+         */
+        private static void createFavoritesIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS favorites_container_screen ON favorites " +
+                    "(container, screen);");
+            db.execSQL("CREATE INDEX IF NOT EXISTS favorites_title ON favorites (title);");
+            db.execSQL("CREATE INDEX IF NOT EXISTS favorites_intent ON favorites (intent);");
+        }
+
+        private static void createIconsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE icons (" +
+                    "iconId INTEGER PRIMARY KEY," +
+                    "iconHash TEXT UNIQUE," +
+                    "iconData BLOB" +
+                    ");");
+        }
+
+        /**
+         * Moves the custom icons stored in the rows of the favorites to the
+         * icons table, see {@link LauncherProvider#storeIcon}. The icons are
+         * moved as they are, they are scaled when the favorites are written
+         * again. A row is only cleared once its icon was stored, the icon of a
+         * row that cannot be moved stays where it is and is still displayed.
+         *
+         * @return The number of icons that could not be moved.
+         */
+        private int moveIconsToIconsTable(SQLiteDatabase db) {
+            final String where = Favorites.ICON + " NOT NULL";
+            final ArrayList<Long> ids = new ArrayList<Long>();
+            Cursor c = db.query(TABLE_FAVORITES, new String[] { Favorites._ID }, where,
+                    null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    ids.add(c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+
+            if (LOGD) Log.d(LOG_TAG, "moving " + ids.size() + " icons to the icons table");
+
+            // One row at a time, the old icons were stored at full size
+            final String[] projection = new String[] { Favorites.ICON };
+            int failed = 0;
+            for (Long id : ids) {
+                final String idWhere = Favorites._ID + "=" + id;
+                try {
+                    c = db.query(TABLE_FAVORITES, projection, idWhere, null, null, null, null);
+                    byte[] data = null;
+                    try {
+                        if (c.moveToFirst()) data = c.getBlob(0);
+                    } finally {
+                        c.close();
+                    }
+                    if (data == null) continue;
+
+                    final long iconId = insertIcon(db, data);
+                    if (iconId < 0) {
+                        failed++;
+                        continue;
+                    }
+
+                    final ContentValues values = new ContentValues(2);
+                    values.put(Favorites.ICON_ID, iconId);
+                    values.putNull(Favorites.ICON);
+                    db.update(TABLE_FAVORITES, values, idWhere, null);
+                } catch (RuntimeException e) {
+                    // Never lose the favorites for an icon
+                    Log.w(LOG_TAG, "Could not move the icon of favorite " + id, e);
+                    failed++;
+                } catch (OutOfMemoryError e) {
+                    Log.w(LOG_TAG, "Could not move the icon of favorite " + id, e);
+                    failed++;
+                }
+            }
+
+            return failed;
+        }
+
         private boolean convertDatabase(SQLiteDatabase db) {
             if (LOGD) Log.d(LOG_TAG, "converting database from an older format, but not onUpgrade");
             boolean converted = false;
@@ -330,7 +941,8 @@ public class LauncherProvider extends ContentProvider {
             try {
                 int numValues = rows.length;
                 for (i = 0; i < numValues; i++) {
-                    if (db.insert(TABLE_FAVORITES, null, rows[i]) < 0) {
+                    final ContentValues row = storeIcon(db, rows[i], mContext);
+                    if (db.insert(TABLE_FAVORITES, null, row) < 0) {
                         return 0;
                     } else {
                         total++;
@@ -393,11 +1005,58 @@ public class LauncherProvider extends ContentProvider {
                     db.endTransaction();
                 }
             }
+
+            if (version < 5) {
+                // upgrade 4 -> 5 moved the custom icons to their own table
+                db.beginTransaction();
+                try {
+                    createIconsTable(db);
+                    db.execSQL("ALTER TABLE favorites ADD COLUMN iconId INTEGER;");
+                    db.setTransactionSuccessful();
+                    version = 5;
+                } catch (SQLException ex) {
+                    // Old version remains, which means we wipe old data
+                    Log.e(LOG_TAG, ex.getMessage(), ex);
+                } finally {
+                    db.endTransaction();
+                }
+
+                // The rows are valid whether or not their icon was moved, a
+                // failure here never wipes the data
+                if (version == 5) {
+                    db.beginTransaction();
+                    try {
+                        final int failed = moveIconsToIconsTable(db);
+                        if (failed > 0) Log.w(LOG_TAG, failed + " icons left in the favorites");
+                        db.setTransactionSuccessful();
+                    } catch (RuntimeException ex) {
+                        Log.e(LOG_TAG, ex.getMessage(), ex);
+                    } finally {
+                        db.endTransaction();
+                    }
+                }
+            }
+
+            if (version == 5) {
+                // upgrade 5 -> 6 indexed the favorites, the rows are kept as they are
+                db.beginTransaction();
+                try {
+                    createFavoritesIndexes(db);
+                    db.setTransactionSuccessful();
+                } catch (SQLException ex) {
+                    // The indexes only speed up the queries, never wipe the data for them
+                    Log.e(LOG_TAG, ex.getMessage(), ex);
+                } finally {
+                    db.endTransaction();
+                }
+                version = 6;
+            }
             
             if (version != DATABASE_VERSION) {
                 Log.w(LOG_TAG, "Destroying all old data.");
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_FAVORITES);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_GESTURES);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_ICONS);
                 onCreate(db);
             }
         }
@@ -262,5 +262,13 @@ class LauncherSettings {
          * @see android.provider.LiveFolders#DISPLAY_MODE_LIST
          */
         static final String DISPLAY_MODE = "displayMode";
+
+        /**
+         * The id of the custom icon bitmap in the icons table, if icon type is
+         * ICON_TYPE_BITMAP. The provider fills it when {@link #ICON} is written
+         * and returns the bitmap in {@link #ICON} when queried.
+         * <P>Type: INTEGER</P>
+         */
+        static final String ICON_ID = "iconId";
     }
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counters of the loaders and of the binding of the workspace.
+ *
+ * Every phase keeps a rolling window of its most recent durations, from which
+ * {@link #snapshot()} computes a histogram and percentiles. The statistics
+ * can be queried in-process or written to the log with {@link #dump()}, see
+ * {@link LoaderStatsReceiver}.
+ *
+ * All methods are thread-safe.
+ */
+final class LoaderStats {
+    static final String LOG_TAG = "LoaderStats";
+
+    static final int PHASE_APPLICATIONS_LOADER = 0;
+    static final int PHASE_QUERY_ACTIVITIES = 1;
+    static final int PHASE_LOAD_LABEL = 2;
+    static final int PHASE_LOAD_ICON = 3;
+    static final int PHASE_THUMBNAIL = 4;
+    static final int PHASE_DESKTOP_LOADER = 5;
+    static final int PHASE_DESKTOP_QUERY = 6;
+    static final int PHASE_PENDING_ICONS = 7;
+    static final int PHASE_UI_POST = 8;
+    static final int PHASE_BIND_ITEMS = 9;
+    static final int PHASE_BIND_DRAWER = 10;
+    static final int PHASE_BIND_APPWIDGETS = 11;
+    private static final int PHASE_COUNT = 12;
+
+    private static final String[] PHASE_NAMES = {
+        "applications loader",
+        "query activities",
+        "load label",
+        "load icon",
+        "thumbnail",
+        "desktop loader",
+        "desktop query",
+        "pending icons",
+        "ui post",
+        "bind items",
+        "bind drawer",
+        "bind appwidgets",
+    };
+
+    static final int COUNTER_APPLICATIONS = 0;
+    static final int COUNTER_DESKTOP_ITEMS = 1;
+    static final int COUNTER_ICON_CACHE_HITS = 2;
+    static final int COUNTER_ICON_CACHE_MISSES = 3;
+    static final int COUNTER_APPLICATIONS_LOADER_ABORTS = 4;
+    static final int COUNTER_DESKTOP_LOADER_ABORTS = 5;
+    private static final int COUNTER_COUNT = 6;
+
+    private static final String[] COUNTER_NAMES = {
+        "applications",
+        "desktop items",
+        "icon cache hits",
+        "icon cache misses",
+        "applications loader aborts",
+        "desktop loader aborts",
+    };
+
+    // Number of durations kept by every phase
+    private static final int WINDOW_SIZE = 128;
+
+    /**
+     * Upper bounds, in microseconds, of the buckets of the histograms. The last
+     * bucket holds everything above the last bound.
+     */
+    static final long[] BUCKET_BOUNDS = {
+        100, 500, 1000, 5000, 10000, 50000, 100000, 500000, 1000000
+    };
+
+    private static final Window[] sWindows = new Window[PHASE_COUNT];
+    private static final AtomicLong[] sCounters = new AtomicLong[COUNTER_COUNT];
+
+    static {
+        for (int i = 0; i < PHASE_COUNT; i++) sWindows[i] = new Window();
+        for (int i = 0; i < COUNTER_COUNT; i++) sCounters[i] = new AtomicLong();
+    }
+
+    private LoaderStats() {
+    }
+
+    /**
+     * Returns the start time of a phase, to pass to {@link #end(int, long)}.
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the duration of a phase that started at the specified time.
+     */
+    static void end(int phase, long start) {
+        sWindows[phase].add((System.nanoTime() - start) / 1000);
+    }
+
+    static void increment(int counter) {
+        sCounters[counter].incrementAndGet();
+    }
+
+    static void add(int counter, long value) {
+        sCounters[counter].addAndGet(value);
+    }
+
+    /**
+     * Forgets all the durations and resets the counters.
+     */
+    static void reset() {
+        for (Window window : sWindows) window.clear();
+        for (AtomicLong counter : sCounters) counter.set(0);
+    }
+
+    /**
+     * Returns the statistics of all the phases and counters.
+     */
+    static Snapshot snapshot() {
+        final PhaseStats[] phases = new PhaseStats[PHASE_COUNT];
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            phases[i] = sWindows[i].stats(PHASE_NAMES[i]);
+        }
+        final long[] counters = new long[COUNTER_COUNT];
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            counters[i] = sCounters[i].get();
+        }
+        return new Snapshot(phases, counters);
+    }
+
+    /**
+     * Writes the current statistics to the log.
+     */
+    static void dump() {
+        final Snapshot snapshot = snapshot();
+
+        Log.i(LOG_TAG, "Loader statistics (durations in ms, last " + WINDOW_SIZE + " samples)");
+        for (PhaseStats phase : snapshot.phases) {
+            if (phase.count == 0) continue;
+            Log.i(LOG_TAG, "  " + phase);
+        }
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            Log.i(LOG_TAG, "  " + COUNTER_NAMES[i] + ": " + snapshot.counters[i]);
+        }
+    }
+
+    /**
+     * The statistics of all the phases and counters at a given time.
+     */
+    static final class Snapshot {
+        final PhaseStats[] phases;
+        final long[] counters;
+
+        Snapshot(PhaseStats[] phases, long[] counters) {
+            this.phases = phases;
+            this.counters = counters;
+        }
+
+        PhaseStats getPhase(int phase) {
+            return phases[phase];
+        }
+
+        long getCounter(int counter) {
+            return counters[counter];
+        }
+    }
+
+    /**
+     * The statistics of the rolling window of a phase. Durations are in microseconds.
+     */
+    static final class PhaseStats {
+        final String name;
+        /** Number of durations recorded since the last reset, not only in the window. */
+        final long total;
+        final int count;
+        final long min;
+        final long max;
+        final long mean;
+        final long p50;
+        final long p90;
+        final long p99;
+        /** Number of durations of the window in each bucket, see {@link #BUCKET_BOUNDS}. */
+        final int[] histogram;
+
+        PhaseStats(String name, long total, long[] sorted) {
+            this.name = name;
+            this.total = total;
+            count = sorted.length;
+            histogram = new int[BUCKET_BOUNDS.length + 1];
+
+            if (count == 0) {
+                min = max = mean = p50 = p90 = p99 = 0;
+                return;
+            }
+
+            long sum = 0;
+            int bucket = 0;
+            for (long duration : sorted) {
+                sum += duration;
+                while (bucket < BUCKET_BOUNDS.length && duration > BUCKET_BOUNDS[bucket]) {
+                    bucket++;
+                }
+                histogram[bucket]++;
+            }
+
+            min = sorted[0];
+            max = sorted[count - 1];
+            mean = sum / count;
+            p50 = sorted[(count - 1) * 50 / 100];
+            p90 = sorted[(count - 1) * 90 / 100];
+            p99 = sorted[(count - 1) * 99 / 100];
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder(name);
+            builder.append(": n=").append(total);
+            builder.append(" min=").append(millis(min));
+            builder.append(" mean=").append(millis(mean));
+            builder.append(" p50=").append(millis(p50));
+            builder.append(" p90=").append(millis(p90));
+            builder.append(" p99=").append(millis(p99));
+            builder.append(" max=").append(millis(max));
+            builder.append(" histogram=[");
+            for (int i = 0; i < histogram.length; i++) {
+                if (i > 0) builder.append(' ');
+                builder.append(i < BUCKET_BOUNDS.length ?
+                        "<=" + millis(BUCKET_BOUNDS[i]) : ">" + millis(BUCKET_BOUNDS[i - 1]));
+                builder.append(':').append(histogram[i]);
+            }
+            builder.append(']');
+            return builder.toString();
+        }
+
+        private static String millis(long micros) {
+            return String.valueOf(micros / 1000) + '.' + (micros % 1000) / 100;
+        }
+    }
+
+    /**
+     * Circular buffer of the most recent durations of a phase.
+     */
+    private static final class Window {
+        private final long[] mDurations = new long[WINDOW_SIZE];
+        private long mTotal;
+
+        synchronized void add(long duration) {
+            mDurations[(int) (mTotal % WINDOW_SIZE)] = duration;
+            mTotal++;
+        }
+
+        synchronized void clear() {
+            mTotal = 0;
+        }
+
+        PhaseStats stats(String name) {
+            final long total;
+            final long[] sorted;
+            synchronized (this) {
+                total = mTotal;
+                sorted = new long[(int) Math.min(total, WINDOW_SIZE)];
+                System.arraycopy(mDurations, 0, sorted, 0, sorted.length);
+            }
+            Arrays.sort(sorted);
+            return new PhaseStats(name, total, sorted);
+        }
+    }
+}
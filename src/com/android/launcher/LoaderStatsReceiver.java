@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Writes the loader statistics to the log:
+ *
+ * adb shell am broadcast -a com.android.launcher.action.DUMP_LOADER_STATS [--ez reset true]
+ */
+public class LoaderStatsReceiver extends BroadcastReceiver {
+    private static final String ACTION_DUMP_LOADER_STATS =
+            "com.android.launcher.action.DUMP_LOADER_STATS";
+    private static final String EXTRA_RESET = "reset";
+
+    public void onReceive(Context context, Intent data) {
+        if (!ACTION_DUMP_LOADER_STATS.equals(data.getAction())) {
+            return;
+        }
+
+        LoaderStats.dump();
+        if (data.getBooleanExtra(EXTRA_RESET, false)) {
+            LoaderStats.reset();
+        }
+    }
+}
@@ -36,6 +36,10 @@ public class MyLauncherSettings extends PreferenceActivity implements OnPreferen
         drawerFast.setOnPreferenceChangeListener(this);
         Preference drawerNew = (Preference) findPreference("drawerNew");
         drawerNew.setOnPreferenceChangeListener(this);
+        Preference drawerAtlas = (Preference) findPreference("drawerAtlas");
+        drawerAtlas.setOnPreferenceChangeListener(this);
+        Preference lowMemoryIcons = (Preference) findPreference("lowMemoryIcons");
+        lowMemoryIcons.setOnPreferenceChangeListener(this);
         dlgSeekBarPreference columnsPortrait= (dlgSeekBarPreference) findPreference("drawerColumnsPortrait");
         columnsPortrait.setMin(1);
         dlgSeekBarPreference rowsPortrait= (dlgSeekBarPreference) findPreference("drawerRowsPortrait");
@@ -100,6 +104,17 @@ public class MyLauncherSettings extends PreferenceActivity implements OnPreferen
 			       });
 			AlertDialog alert = builder.create();
 			alert.show();
+		}else if(preference.getKey().equals("drawerAtlas") || preference.getKey().equals("lowMemoryIcons")){
+			AlertDialog.Builder builder = new AlertDialog.Builder(this);
+			builder.setMessage("This setting will cause launcher to restart")
+			       .setCancelable(false)
+			       .setPositiveButton("Ok", new DialogInterface.OnClickListener() {
+			           public void onClick(DialogInterface dialog, int id) {
+							shouldRestart=true;
+			           }
+			       });
+			AlertDialog alert = builder.create();
+			alert.show();
 		}else if(preference.getKey().equals("drawerFast")){
 			boolean val=Boolean.parseBoolean(newValue.toString());
 			boolean newDrawer=AlmostNexusSettingsHelper.getDrawerNew(getApplicationContext());
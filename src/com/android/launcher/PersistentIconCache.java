@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * On-disk cache of the labels and thumbnails of the launchable activities.
+ *
+ * Entries are keyed by component name and by the modification time of the
+ * package they come from. The whole cache is tagged with the locale and the
+ * icon size it was built for and is discarded when either changes. This lets
+ * the applications loader skip the PackageManager resource loading and the
+ * thumbnailing on a warm boot. Each thumbnail is stored along with how it
+ * uses its alpha channel, which tells the format it can be decoded to in
+ * the low memory mode.
+ *
+ * All methods are thread-safe.
+ */
+final class PersistentIconCache {
+    private static final String LOG_TAG = "PersistentIconCache";
+
+    private static final String CACHE_FILE = "application_icons.cache";
+    private static final String CACHE_FILE_TEMP = CACHE_FILE + ".tmp";
+    private static final int CACHE_VERSION = 2;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * A cached label and thumbnail. Entries are immutable.
+     */
+    static final class Entry {
+        final long timestamp;
+        final String label;
+        final byte[] icon;
+        // One of the IconRenderer.ALPHA_* constants
+        final int alpha;
+
+        Entry(long timestamp, String label, byte[] icon, int alpha) {
+            this.timestamp = timestamp;
+            this.label = label;
+            this.icon = icon;
+            this.alpha = alpha;
+        }
+
+        /**
+         * Decodes the cached thumbnail.
+         *
+         * @param config The configuration to decode to, or null for the default one.
+         *
+         * @return The thumbnail or null if it could not be decoded.
+         */
+        Bitmap decodeIcon(Bitmap.Config config) {
+            if (config == null) {
+                return BitmapFactory.decodeByteArray(icon, 0, icon.length);
+            }
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = config;
+            options.inDither = true;
+            return BitmapFactory.decodeByteArray(icon, 0, icon.length, options);
+        }
+    }
+
+    private final Context mContext;
+    private final HashMap<ComponentName, Entry> mEntries = new HashMap<ComponentName, Entry>();
+
+    private boolean mLoaded;
+    private boolean mDirty;
+    private boolean mSaving;
+
+    PersistentIconCache(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Returns the timestamp identifying the installed version of the package
+     * holding the specified activity.
+     */
+    static long getTimestamp(ActivityInfo activityInfo) {
+        final String sourceDir = activityInfo.applicationInfo.sourceDir;
+        return sourceDir != null ? new File(sourceDir).lastModified() : 0;
+    }
+
+    /**
+     * Returns the cached entry for the specified component.
+     *
+     * @param component The component to look for.
+     * @param timestamp The current timestamp of the package, see {@link #getTimestamp}.
+     *
+     * @return The cached entry or null if there is none or if it is stale.
+     */
+    synchronized Entry get(ComponentName component, long timestamp) {
+        ensureLoadedLocked();
+
+        final Entry entry = mEntries.get(component);
+        if (entry != null && entry.timestamp == timestamp) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Stores the label and thumbnail of the specified component.
+     *
+     * @param alpha How the thumbnail uses its alpha, see {@link IconRenderer#classifyAlpha}.
+     */
+    void put(ComponentName component, long timestamp, CharSequence label, Bitmap thumbnail,
+            int alpha) {
+        // Compress outside of the lock, this is the expensive part
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                thumbnail.getWidth() * thumbnail.getHeight());
+        if (!thumbnail.compress(Bitmap.CompressFormat.PNG, 100, out)) {
+            return;
+        }
+        final Entry entry = new Entry(timestamp, label != null ? label.toString() : "",
+                out.toByteArray(), alpha);
+
+        synchronized (this) {
+            ensureLoadedLocked();
+            mEntries.put(component, entry);
+            mDirty = true;
+        }
+    }
+
+    synchronized void remove(ComponentName component) {
+        ensureLoadedLocked();
+        if (mEntries.remove(component) != null) {
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Removes all the entries, for instance after a locale change.
+     */
+    synchronized void clear() {
+        ensureLoadedLocked();
+        mEntries.clear();
+        mDirty = true;
+    }
+
+    /**
+     * Removes every entry whose component is not in the specified set.
+     */
+    synchronized void retainAll(Set<ComponentName> components) {
+        ensureLoadedLocked();
+        final Iterator<ComponentName> iterator = mEntries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!components.contains(iterator.next())) {
+                iterator.remove();
+                mDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the cache to disk if it was modified. Must not be invoked on the UI thread.
+     */
+    void save() {
+        final HashMap<ComponentName, Entry> entries;
+        synchronized (this) {
+            if (!mDirty || mSaving) return;
+            entries = new HashMap<ComponentName, Entry>(mEntries);
+            mDirty = false;
+            mSaving = true;
+        }
+
+        try {
+            if (!write(entries)) {
+                synchronized (this) {
+                    mDirty = true;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                mSaving = false;
+            }
+        }
+    }
+
+    /**
+     * Writes the cache to disk from a background thread if it was modified.
+     */
+    void saveInBackground() {
+        synchronized (this) {
+            if (!mDirty || mSaving) return;
+        }
+        new Thread(new Runnable() {
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                save();
+            }
+        }, "Icon Cache Writer").start();
+    }
+
+    private void ensureLoadedLocked() {
+        if (mLoaded) return;
+        mLoaded = true;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    mContext.openFileInput(CACHE_FILE), BUFFER_SIZE));
+
+            if (in.readInt() != CACHE_VERSION || !getLocale().equals(in.readUTF()) ||
+                    in.readInt() != getIconSize()) {
+                // Built for another configuration, start over
+                mDirty = true;
+                return;
+            }
+
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final ComponentName component =
+                        ComponentName.unflattenFromString(in.readUTF());
+                final long timestamp = in.readLong();
+                final String label = in.readUTF();
+                final int alpha = in.readByte();
+                final byte[] icon = new byte[in.readInt()];
+                in.readFully(icon);
+
+                if (component != null) {
+                    mEntries.put(component, new Entry(timestamp, label, icon, alpha));
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Ignore
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read the icon cache", e);
+            mEntries.clear();
+            mDirty = true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private boolean write(HashMap<ComponentName, Entry> entries) {
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    mContext.openFileOutput(CACHE_FILE_TEMP, Context.MODE_PRIVATE), BUFFER_SIZE));
+
+            out.writeInt(CACHE_VERSION);
+            out.writeUTF(getLocale());
+            out.writeInt(getIconSize());
+            out.writeInt(entries.size());
+
+            for (Map.Entry<ComponentName, Entry> e : entries.entrySet()) {
+                final Entry entry = e.getValue();
+                out.writeUTF(e.getKey().flattenToString());
+                out.writeLong(entry.timestamp);
+                out.writeUTF(entry.label);
+                out.writeByte(entry.alpha);
+                out.writeInt(entry.icon.length);
+                out.write(entry.icon);
+            }
+
+            out.flush();
+            written = true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not write the icon cache", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    written = false;
+                }
+            }
+        }
+
+        final File temp = mContext.getFileStreamPath(CACHE_FILE_TEMP);
+        if (written) {
+            written = temp.renameTo(mContext.getFileStreamPath(CACHE_FILE));
+        }
+        if (!written) {
+            temp.delete();
+        }
+
+        return written;
+    }
+
+    private String getLocale() {
+        return mContext.getResources().getConfiguration().locale.toString();
+    }
+
+    private int getIconSize() {
+        return (int) mContext.getResources().getDimension(android.R.dimen.app_icon_size);
+    }
+}
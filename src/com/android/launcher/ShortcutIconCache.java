@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of the thumbnails of the custom shortcut icons, keyed by a digest of
+ * their content. Shortcuts sharing the same icon, for instance bookmarks of
+ * the same site, share a single decoded thumbnail, and reloading the desktop
+ * does not decode the icons again.
+ *
+ * In the low memory mode, the thumbnails are cached in the compact format
+ * matching their alpha.
+ *
+ * The returned bitmaps are shared and must not be modified or recycled.
+ *
+ * All methods are thread-safe.
+ */
+final class ShortcutIconCache {
+    private static final String LOG_TAG = "ShortcutIconCache";
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Distinguishes the digests of encoded icons from the digests of pixels
+    private static final byte KIND_ENCODED = 'E';
+    private static final byte KIND_PIXELS = 'P';
+
+    private static final class Key {
+        private final byte[] mDigest;
+        private final int mHashCode;
+
+        Key(byte[] digest) {
+            mDigest = digest;
+            mHashCode = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(mDigest, ((Key) o).mDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    // Access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<Key, Bitmap> mThumbnails =
+            new LinkedHashMap<Key, Bitmap>(INITIAL_CAPACITY, 0.75f, true);
+
+    private final long mBudget;
+    private long mBytes;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param budget The maximum number of bytes used by the cached thumbnails.
+     */
+    ShortcutIconCache(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Returns the thumbnail of the specified encoded icon, as stored in the
+     * ICON column of the favorites.
+     *
+     * @return The thumbnail or null if the icon could not be decoded.
+     */
+    Bitmap getThumbnail(byte[] data, Context context) {
+        final Key key = digest(KIND_ENCODED, data, null);
+        if (key != null) {
+            final Bitmap cached = get(key);
+            if (cached != null) return cached;
+        }
+
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (bitmap == null) return null;
+
+        return put(key, createThumbnail(bitmap, context));
+    }
+
+    /**
+     * Returns the thumbnail of the specified bitmap, for instance the icon of
+     * a shortcut created by another application.
+     */
+    Bitmap getThumbnail(Bitmap bitmap, Context context) {
+        final Key key = digest(KIND_PIXELS, null, bitmap);
+        if (key != null) {
+            final Bitmap cached = get(key);
+            if (cached != null) return cached;
+        }
+
+        return put(key, createThumbnail(bitmap, context));
+    }
+
+    synchronized void clear() {
+        mThumbnails.clear();
+        mBytes = 0;
+    }
+
+    private synchronized Bitmap get(Key key) {
+        return mThumbnails.get(key);
+    }
+
+    private synchronized Bitmap put(Key key, Bitmap thumbnail) {
+        if (key == null) return thumbnail;
+
+        // Another thread may have decoded the same icon in the meantime
+        final Bitmap cached = mThumbnails.get(key);
+        if (cached != null) return cached;
+
+        mThumbnails.put(key, thumbnail);
+        mBytes += sizeOf(thumbnail);
+
+        final Iterator<Bitmap> iterator = mThumbnails.values().iterator();
+        while (mBytes > mBudget && iterator.hasNext()) {
+            final Bitmap eldest = iterator.next();
+            if (eldest == thumbnail) break;
+            mBytes -= sizeOf(eldest);
+            iterator.remove();
+        }
+
+        return thumbnail;
+    }
+
+    private static Bitmap createThumbnail(Bitmap bitmap, Context context) {
+        final IconRenderer renderer = IconRenderer.getInstance(context);
+        final Bitmap thumbnail = renderer.createBitmapThumbnail(bitmap);
+        if (!renderer.isCompact()) return thumbnail;
+
+        // Checked once per icon, the cache keeps the compacted thumbnail
+        final Bitmap compact = renderer.compact(thumbnail, renderer.classifyAlpha(thumbnail));
+        if (compact != thumbnail && thumbnail != bitmap) BitmapPool.release(thumbnail);
+        return compact;
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Computes the key of either the encoded data or the pixels of the bitmap.
+     *
+     * @return The key or null if no digest is available.
+     */
+    private static Key digest(byte kind, byte[] data, Bitmap bitmap) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(LOG_TAG, "No " + DIGEST_ALGORITHM + " digest, icons are not cached");
+            return null;
+        }
+
+        digest.update(kind);
+        if (data != null) {
+            digest.update(data);
+        } else {
+            final int width = bitmap.getWidth();
+            final int height = bitmap.getHeight();
+            updateInt(digest, width);
+            updateInt(digest, height);
+
+            final int[] pixels = new int[width];
+            final byte[] row = new byte[width * 4];
+            for (int y = 0; y < height; y++) {
+                bitmap.getPixels(pixels, 0, width, 0, y, width, 1);
+                for (int x = 0, i = 0; x < width; x++) {
+                    final int pixel = pixels[x];
+                    row[i++] = (byte) (pixel >>> 24);
+                    row[i++] = (byte) (pixel >>> 16);
+                    row[i++] = (byte) (pixel >>> 8);
+                    row[i++] = (byte) pixel;
+                }
+                digest.update(row);
+            }
+        }
+
+        return new Key(digest.digest());
+    }
+
+    private static void updateInt(MessageDigest digest, int value) {
+        digest.update((byte) (value >>> 24));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) value);
+    }
+}
@@ -40,6 +40,7 @@ public class UninstallShortcutReceiver extends BroadcastReceiver {
         boolean duplicate = data.getBooleanExtra(Launcher.EXTRA_SHORTCUT_DUPLICATE, true);
 
         if (intent != null && name != null) {
+            LauncherModel.flushDatabaseWrites();
             final ContentResolver cr = context.getContentResolver();
             Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI,
                 new String[] { LauncherSettings.Favorites._ID, LauncherSettings.Favorites.INTENT },
@@ -55,8 +56,9 @@ public class UninstallShortcutReceiver extends BroadcastReceiver {
                     try {
                         if (intent.filterEquals(Intent.parseUri(c.getString(intentIndex), 0))) {
                             final long id = c.getLong(idIndex);
-                            final Uri uri = LauncherSettings.Favorites.getContentUri(id, false);
+                            final Uri uri = LauncherSettings.Favorites.getContentUri(id, true);
                             cr.delete(uri, null, null);
+                            LauncherModel.onItemDeleted(id);
                             changed = true;
                             if (!duplicate) {
                                 break;
@@ -71,7 +73,6 @@ public class UninstallShortcutReceiver extends BroadcastReceiver {
             }
 
             if (changed) {
-                cr.notifyChange(LauncherSettings.Favorites.CONTENT_URI, null);
                 Toast.makeText(context, context.getString(R.string.shortcut_uninstalled, name),
                         Toast.LENGTH_SHORT).show();
             }
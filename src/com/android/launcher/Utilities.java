@@ -19,17 +19,13 @@ package com.android.launcher;
 import android.graphics.Bitmap.Config;
 import android.graphics.PorterDuff.Mode;
 import android.graphics.Shader.TileMode;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.graphics.drawable.PaintDrawable;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.ColorMatrixColorFilter;
 import android.graphics.LinearGradient;
 import android.graphics.Matrix;
-import android.graphics.PixelFormat;
 import android.graphics.Canvas;
-import android.graphics.PaintFlagsDrawFilter;
 import android.graphics.Paint;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
@@ -42,19 +38,6 @@ import android.content.Context;
  * Various utilities shared amongst the Launcher's classes.
  */
 final class Utilities {
-    private static int sIconWidth = -1;
-    private static int sIconHeight = -1;
-
-    private static final Paint sPaint = new Paint();
-    private static final Rect sBounds = new Rect();
-    private static final Rect sOldBounds = new Rect();
-    private static Canvas sCanvas = new Canvas();
-
-    static {
-        sCanvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
-    }
-
     static Bitmap centerToFit(Bitmap bitmap, int width, int height, Context context) {
         final int bitmapWidth = bitmap.getWidth();
         final int bitmapHeight = bitmap.getHeight();
@@ -81,7 +64,7 @@ final class Utilities {
      * The size of the thumbnail is defined by the dimension
      * android.R.dimen.launcher_application_icon_size.
      *
-     * This method is not thread-safe and should be invoked on the UI thread only.
+     * This method can be invoked from any thread, see {@link IconRenderer}.
      *
      * @param icon The icon to get a thumbnail of.
      * @param context The application's context.
@@ -90,73 +73,24 @@ final class Utilities {
      *         thumbnail could not be created. 
      */
     static Drawable createIconThumbnail(Drawable icon, Context context) {
-        if (sIconWidth == -1) {
-            final Resources resources = context.getResources();
-            sIconWidth = sIconHeight = (int) resources.getDimension(android.R.dimen.app_icon_size);
-        }
-
-        int width = sIconWidth;
-        int height = sIconHeight;
-
-        float scale = 1.0f;
-        if (icon instanceof PaintDrawable) {
-            PaintDrawable painter = (PaintDrawable) icon;
-            painter.setIntrinsicWidth(width);
-            painter.setIntrinsicHeight(height);
-        } else if (icon instanceof BitmapDrawable) {
-            // Ensure the bitmap has a density.
-            BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
-            Bitmap bitmap = bitmapDrawable.getBitmap();
-            if (bitmap.getDensity() == Bitmap.DENSITY_NONE) {
-                bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
-            }
-        }
-        int iconWidth = icon.getIntrinsicWidth();
-        int iconHeight = icon.getIntrinsicHeight();
-
-        if (width > 0 && height > 0) {
-            if (width < iconWidth || height < iconHeight || scale != 1.0f) {
-                final float ratio = (float) iconWidth / iconHeight;
-
-                if (iconWidth > iconHeight) {
-                    height = (int) (width / ratio);
-                } else if (iconHeight > iconWidth) {
-                    width = (int) (height * ratio);
-                }
-
-                final Bitmap.Config c = icon.getOpacity() != PixelFormat.OPAQUE ?
-                            Bitmap.Config.ARGB_8888 : Bitmap.Config.RGB_565;
-                final Bitmap thumb = Bitmap.createBitmap(sIconWidth, sIconHeight, c);
-                final Canvas canvas = sCanvas;
-                canvas.setBitmap(thumb);
-                // Copy the old bounds to restore them later
-                // If we were to do oldBounds = icon.getBounds(),
-                // the call to setBounds() that follows would
-                // change the same instance and we would lose the
-                // old bounds
-                sOldBounds.set(icon.getBounds());
-                final int x = (sIconWidth - width) / 2;
-                final int y = (sIconHeight - height) / 2;
-                icon.setBounds(x, y, x + width, y + height);
-                icon.draw(canvas);
-                icon.setBounds(sOldBounds);
-                icon = new FastBitmapDrawable(thumb);
-            } else if (iconWidth < width && iconHeight < height) {
-                final Bitmap.Config c = Bitmap.Config.ARGB_8888;
-                final Bitmap thumb = Bitmap.createBitmap(sIconWidth, sIconHeight, c);
-                final Canvas canvas = sCanvas;
-                canvas.setBitmap(thumb);
-                sOldBounds.set(icon.getBounds());
-                final int x = (width - iconWidth) / 2;
-                final int y = (height - iconHeight) / 2;
-                icon.setBounds(x, y, x + iconWidth, y + iconHeight);
-                icon.draw(canvas);
-                icon.setBounds(sOldBounds);
-                icon = new FastBitmapDrawable(thumb);
-            }
-        }
+        return IconRenderer.getInstance(context).createIconThumbnail(icon);
+    }
 
-        return icon;
+    /**
+     * Returns a Bitmap of the size defined by android.R.dimen.app_icon_size
+     * holding the thumbnail of the specified Drawable. Unlike
+     * {@link #createIconThumbnail(Drawable, Context)} this method never returns
+     * the icon itself, which makes its result suitable for caching.
+     *
+     * This method can be invoked from any thread, see {@link IconRenderer}.
+     *
+     * @param icon The icon to get a thumbnail of.
+     * @param context The application's context.
+     *
+     * @return A bitmap holding the thumbnail of the specified icon.
+     */
+    static Bitmap createIconBitmap(Drawable icon, Context context) {
+        return IconRenderer.getInstance(context).createIconBitmap(icon);
     }
 
     /**
@@ -164,7 +98,7 @@ final class Utilities {
      * The size of the thumbnail is defined by the dimension
      * android.R.dimen.launcher_application_icon_size.
      *
-     * This method is not thread-safe and should be invoked on the UI thread only.
+     * This method can be invoked from any thread, see {@link IconRenderer}.
      *
      * @param bitmap The bitmap to get a thumbnail of.
      * @param context The application's context.
@@ -173,72 +107,39 @@ final class Utilities {
      *         thumbnail could not be created.
      */
     static Bitmap createBitmapThumbnail(Bitmap bitmap, Context context) {
-        if (sIconWidth == -1) {
-            final Resources resources = context.getResources();
-            sIconWidth = sIconHeight = (int) resources.getDimension(
-                    android.R.dimen.app_icon_size);
-        }
-
-        int width = sIconWidth;
-        int height = sIconHeight;
-
-        final int bitmapWidth = bitmap.getWidth();
-        final int bitmapHeight = bitmap.getHeight();
+        return IconRenderer.getInstance(context).createBitmapThumbnail(bitmap);
+    }
 
-        if (width > 0 && height > 0) {
-            if (width < bitmapWidth || height < bitmapHeight) {
-                final float ratio = (float) bitmapWidth / bitmapHeight;
-    
-                if (bitmapWidth > bitmapHeight) {
-                    height = (int) (width / ratio);
-                } else if (bitmapHeight > bitmapWidth) {
-                    width = (int) (height * ratio);
-                }
-    
-                final Bitmap.Config c = (width == sIconWidth && height == sIconHeight) ?
-                        bitmap.getConfig() : Bitmap.Config.ARGB_8888;
-                final Bitmap thumb = Bitmap.createBitmap(sIconWidth, sIconHeight, c);
-                final Canvas canvas = sCanvas;
-                final Paint paint = sPaint;
-                canvas.setBitmap(thumb);
-                paint.setDither(false);
-                paint.setFilterBitmap(true);
-                sBounds.set((sIconWidth - width) / 2, (sIconHeight - height) / 2, width, height);
-                sOldBounds.set(0, 0, bitmapWidth, bitmapHeight);
-                canvas.drawBitmap(bitmap, sOldBounds, sBounds, paint);
-                return thumb;
-            } else if (bitmapWidth < width || bitmapHeight < height) {
-                final Bitmap.Config c = Bitmap.Config.ARGB_8888;
-                final Bitmap thumb = Bitmap.createBitmap(sIconWidth, sIconHeight, c);
-                final Canvas canvas = sCanvas;
-                final Paint paint = sPaint;
-                canvas.setBitmap(thumb);
-                paint.setDither(false);
-                paint.setFilterBitmap(true);
-                canvas.drawBitmap(bitmap, (sIconWidth - bitmapWidth) / 2,
-                        (sIconHeight - bitmapHeight) / 2, paint);
-                return thumb;
-            }
+    /**
+     * Draws the specified icon at the specified size in the canvas and restores
+     * its bounds. The icon can be shared with other threads and views, see
+     * {@link IconRenderer}.
+     */
+    private static void drawIcon(Drawable icon, Canvas canvas, int width, int height) {
+        synchronized (icon) {
+            final Rect oldBounds = icon.copyBounds();
+            icon.setBounds(0, 0, width, height);
+            icon.draw(canvas);
+            icon.setBounds(oldBounds);
         }
-
-        return bitmap;
     }
+
     //TODO: ADW Create an icon drawable with reflection :P
     //Thanks to http://www.inter-fuser.com/2009/12/android-reflections-with-bitmaps.html
     static Drawable drawReflection(Drawable icon,Context context){
     	final Resources resources=context.getResources();
-    	sIconWidth = sIconHeight = (int) resources.getDimension(android.R.dimen.app_icon_size);
+    	final int iconWidth, iconHeight;
+    	iconWidth = iconHeight = (int) resources.getDimension(android.R.dimen.app_icon_size);
     	//The gap we want between the reflection and the original image
         final float scale=1.30f;
       
-        int width = sIconWidth;
-        int height = sIconHeight;
-        float ratio=sIconHeight/(sIconHeight*scale);
-    	Bitmap original = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int width = iconWidth;
+        int height = iconHeight;
+        float ratio=iconHeight/(iconHeight*scale);
+    	Bitmap original = BitmapPool.obtain(width, height, Bitmap.Config.ARGB_8888);
         final Canvas cv = new Canvas();
         cv.setBitmap(original);
-        icon.setBounds(0,0, width, height);
-        icon.draw(cv);
+        drawIcon(icon, cv, width, height);
         //This will not scale but will flip on the Y axis
         Matrix matrix = new Matrix();
         matrix.preScale(1, -1);
@@ -249,7 +150,7 @@ final class Utilities {
         
             
         //Create a new bitmap with same width but taller to fit reflection
-        Bitmap bitmapWithReflection = Bitmap.createBitmap(width 
+        Bitmap bitmapWithReflection = BitmapPool.obtain(width 
           , (int) (height*scale), Config.ARGB_8888);
       
        //Create a new Canvas with the bitmap that's big enough for
@@ -275,25 +176,27 @@ final class Utilities {
          bitmapWithReflection.getHeight(), paint); 
        //Draw in the original image
        canvas.drawBitmap(original, 0, 0, null);
-       original.recycle();
+       BitmapPool.release(original);
        reflectionImage.recycle();
        
-       return new FastBitmapDrawable(Bitmap.createScaledBitmap(bitmapWithReflection,Math.round((float)sIconWidth*ratio),sIconHeight,true));
+       final Bitmap scaled = Bitmap.createScaledBitmap(bitmapWithReflection,Math.round((float)iconWidth*ratio),iconHeight,true);
+       if (scaled != bitmapWithReflection) BitmapPool.release(bitmapWithReflection);
+       return new FastBitmapDrawable(scaled);
     }
     //TODO: ADW Create an icon drawable with reflection :P
     //Thanks to http://www.inter-fuser.com/2009/12/android-reflections-with-bitmaps.html
     static Drawable scaledDrawable(Drawable icon,Context context, boolean tint){
     	final Resources resources=context.getResources();
-    	sIconWidth = sIconHeight = (int) resources.getDimension(android.R.dimen.app_icon_size);
+    	final int iconWidth, iconHeight;
+    	iconWidth = iconHeight = (int) resources.getDimension(android.R.dimen.app_icon_size);
         final float scale=0.50f;
       
-        int width = sIconWidth;
-        int height = sIconHeight;
-    	Bitmap original = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        int width = iconWidth;
+        int height = iconHeight;
+    	Bitmap original = BitmapPool.obtain(width, height, Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(original);
         canvas.setBitmap(original);
-        icon.setBounds(0,0, width, height);
-        icon.draw(canvas);
+        drawIcon(icon, canvas, width, height);
         
         if(tint){
 	        Paint paint = new Paint(); 
@@ -305,7 +208,7 @@ final class Utilities {
 	                height, paint);
         }        
     	Bitmap endImage=Bitmap.createScaledBitmap(original, (int)(width*scale), (int)(height*scale), true);
-    	original.recycle();
+    	if (endImage != original) BitmapPool.release(original);
     	return new FastBitmapDrawable(endImage);
     }   
 }
\ No newline at end of file
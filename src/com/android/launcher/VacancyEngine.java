@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import java.util.ArrayList;
+
+/**
+ * Finds the vacant areas of a grid of cells.
+ *
+ * The grid is described by its occupied cells, one long per row with one bit
+ * per column. The vacant areas are the maximal empty rectangles of the grid:
+ * the empty rectangles that cannot grow in any direction. Every empty area
+ * fits in at least one of them, and each is reported once.
+ *
+ * The rectangles are found row by row: the empty cells above each cell of a
+ * row form a histogram, and the maximal rectangles whose bottom edge lies on
+ * that row are the maximal bars of the histogram, found with a stack. This
+ * takes a time proportional to the number of cells.
+ */
+final class VacancyEngine {
+    private VacancyEngine() {
+    }
+
+    /**
+     * Adds the maximal empty rectangles of the grid to the vacant cells of the
+     * specified CellInfo and updates its largest spans.
+     *
+     * @param occupied The occupied cells, indexed by row with one bit per column.
+     * @param xCount The number of columns.
+     * @param yCount The number of rows.
+     * @param cellX The column of a cell the rectangles must contain, or -1.
+     * @param cellY The row of a cell the rectangles must contain, or -1.
+     * @param cellInfo The CellInfo receiving the rectangles.
+     */
+    static void findMaximalRectangles(long[] occupied, int xCount, int yCount,
+            int cellX, int cellY, CellLayout.CellInfo cellInfo) {
+
+        final boolean contain = cellX >= 0 && cellY >= 0;
+
+        // Number of empty cells above and including the current row, per column
+        final int[] heights = new int[xCount];
+        // Bars of the histogram, by increasing height
+        final int[] stackStart = new int[xCount];
+        final int[] stackHeight = new int[xCount];
+
+        for (int y = 0; y < yCount; y++) {
+            final long row = occupied[y];
+            for (int x = 0; x < xCount; x++) {
+                heights[x] = (row & (1L << x)) != 0 ? 0 : heights[x] + 1;
+            }
+
+            // A rectangle can grow downwards if the row below is empty under it
+            final long below = y + 1 < yCount ? occupied[y + 1] : -1L;
+            if (contain && (y < cellY)) continue;
+
+            int top = 0;
+            for (int x = 0; x <= xCount; x++) {
+                final int height = x < xCount ? heights[x] : 0;
+                int start = x;
+
+                while (top > 0 && stackHeight[top - 1] >= height) {
+                    top--;
+                    final int barHeight = stackHeight[top];
+                    final int barStart = stackStart[top];
+                    start = barStart;
+
+                    // A bar as high as the current column continues to the right
+                    if (barHeight > height) {
+                        final int right = x - 1;
+                        if ((below & spanMask(barStart, right - barStart + 1)) != 0) {
+                            addRectangle(barStart, y - barHeight + 1, right, y,
+                                    contain, cellX, cellY, cellInfo);
+                        }
+                    }
+                }
+
+                if (height > 0 && (top == 0 || stackHeight[top - 1] < height)) {
+                    stackStart[top] = start;
+                    stackHeight[top] = height;
+                    top++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds where to put an item of the specified span in the specified
+     * maximal empty rectangles.
+     *
+     * Without anchor, the first fit is returned: the leftmost position, then
+     * the topmost. With an anchor, the rectangles all contain the anchor cell
+     * and the position returned keeps the anchor as close as possible to the
+     * top left corner of the item.
+     *
+     * @param anchorX The column of the anchor cell, or -1.
+     * @param anchorY The row of the anchor cell, or -1.
+     *
+     * @return True if one of the rectangles can hold the item.
+     */
+    static boolean findFirstFit(ArrayList<CellLayout.CellInfo.VacantCell> rectangles,
+            int spanX, int spanY, int anchorX, int anchorY, int[] cellXY) {
+
+        final boolean anchored = anchorX >= 0 && anchorY >= 0;
+        boolean found = false;
+        int bestX = Integer.MAX_VALUE;
+        int bestY = Integer.MAX_VALUE;
+
+        final int count = rectangles.size();
+        for (int i = 0; i < count; i++) {
+            final CellLayout.CellInfo.VacantCell cell = rectangles.get(i);
+            if (cell.spanX < spanX || cell.spanY < spanY) continue;
+
+            int x = cell.cellX;
+            int y = cell.cellY;
+            if (anchored) {
+                x = Math.min(anchorX, cell.cellX + cell.spanX - spanX);
+                y = Math.min(anchorY, cell.cellY + cell.spanY - spanY);
+            }
+
+            final boolean better = anchored ?
+                    (anchorX - x) + (anchorY - y) < (anchorX - bestX) + (anchorY - bestY) :
+                    x < bestX || (x == bestX && y < bestY);
+            if (!found || better) {
+                bestX = x;
+                bestY = y;
+                found = true;
+            }
+        }
+
+        if (found) {
+            cellXY[0] = bestX;
+            cellXY[1] = bestY;
+        }
+        return found;
+    }
+
+    /**
+     * Returns the bits of the specified span of columns.
+     */
+    static long spanMask(int x, int spanX) {
+        return (spanX >= Long.SIZE ? -1L : (1L << spanX) - 1) << x;
+    }
+
+    private static void addRectangle(int left, int top, int right, int bottom,
+            boolean contain, int cellX, int cellY, CellLayout.CellInfo cellInfo) {
+
+        if (contain && (cellX < left || cellX > right || cellY < top || cellY > bottom)) {
+            return;
+        }
+
+        final CellLayout.CellInfo.VacantCell cell = CellLayout.CellInfo.VacantCell.acquire();
+        cell.cellX = left;
+        cell.cellY = top;
+        cell.spanX = right - left + 1;
+        cell.spanY = bottom - top + 1;
+        if (cell.spanX > cellInfo.maxVacantSpanX) {
+            cellInfo.maxVacantSpanX = cell.spanX;
+            cellInfo.maxVacantSpanXSpanY = cell.spanY;
+        }
+        if (cell.spanY > cellInfo.maxVacantSpanY) {
+            cellInfo.maxVacantSpanY = cell.spanY;
+            cellInfo.maxVacantSpanYSpanX = cell.spanX;
+        }
+        cellInfo.vacantCells.add(cell);
+    }
+}
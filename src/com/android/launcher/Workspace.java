@@ -43,6 +43,7 @@ import android.os.Parcelable;
 import android.os.Parcel;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * The workspace is a wide area with a wallpaper and a finite number of screens. Each
@@ -101,10 +102,37 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
     private DragController mDragger;
     
     /**
-     * Cache of vacant cells, used during drag events and invalidated as needed.
+     * Where the dragged item can be dropped, kept for the whole drag and
+     * recomputed only when the occupied cells change.
      */
-    private CellLayout.CellInfo mVacantCache = null;
+    private final CellLayout.DropCandidates mDropCandidates = new CellLayout.DropCandidates();
     
+    /**
+     * The views of the screens by tag and the open folders by folder info,
+     * maintained as the screens gain and lose children.
+     */
+    private final HashMap<Object, View> mViewsByTag = new HashMap<Object, View>();
+    private final HashMap<Object, Folder> mFoldersByInfo = new HashMap<Object, Folder>();
+
+    private final OnHierarchyChangeListener mItemIndexer = new OnHierarchyChangeListener() {
+        public void onChildViewAdded(View parent, View child) {
+            indexView(child);
+        }
+
+        public void onChildViewRemoved(View parent, View child) {
+            final Object tag = child.getTag();
+            if (tag != null && mViewsByTag.get(tag) == child) {
+                mViewsByTag.remove(tag);
+            }
+            if (child instanceof Folder) {
+                final Object info = ((Folder) child).getInfo();
+                if (mFoldersByInfo.get(info) == child) {
+                    mFoldersByInfo.remove(info);
+                }
+            }
+        }
+    };
+
     private int[] mTempCell = new int[2];
     private int[] mTempEstimate = new int[2];
 
@@ -189,6 +217,23 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
         {
             mHomeScreensLoaded++;
             super.addView(child, index, params);
+
+            final CellLayout layout = (CellLayout) child;
+            layout.setOnHierarchyChangeListener(mItemIndexer);
+            final int count = layout.getChildCount();
+            for (int i = 0; i < count; i++) {
+                indexView(layout.getChildAt(i));
+            }
+        }
+    }
+
+    private void indexView(View child) {
+        final Object tag = child.getTag();
+        if (tag != null) {
+            mViewsByTag.put(tag, child);
+        }
+        if (child instanceof Folder) {
+            mFoldersByInfo.put(((Folder) child).getInfo(), (Folder) child);
         }
     }
 
@@ -293,7 +338,6 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
      * @param currentScreen
      */
     void setCurrentScreen(int currentScreen) {
-        clearVacantCache();
         mCurrentScreen = Math.max(0, Math.min(currentScreen, getChildCount() - 1));
         scrollTo(mCurrentScreen * getWidth(), 0);
 	//BY ADW 
@@ -372,8 +416,6 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
                //throw new IllegalStateException("The screen must be >= 0 and < " + getChildCount());
         }
 
-        clearVacantCache();
-
         final CellLayout group = (CellLayout) getChildAt(screen);
         CellLayout.LayoutParams lp = (CellLayout.LayoutParams) child.getLayoutParams();
         if (lp == null) {
@@ -413,20 +455,12 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
         if (group != null) {
             int countX = group.getCountX();
             int countY = group.getCountY();
-            boolean occupied[][] = new boolean[countX][countY];
-            Launcher.getModel().findAllOccupiedCells(occupied, countX, countY, mCurrentScreen);
+            long[] occupied = LauncherModel.getOccupiedCells(getContext(), mCurrentScreen);
             return group.findAllVacantCellsFromOccupied(occupied, countX, countY);
         }
         return null;
     }
 
-    private void clearVacantCache() {
-        if (mVacantCache != null) {
-            mVacantCache.clearVacantCells();
-            mVacantCache = null;
-        }
-    }
-    
     /**
      * Returns the coordinate of a vacant cell for the current screen.
      */
@@ -937,7 +971,6 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
     void snapToScreen(int whichScreen) {
         if (!mScroller.isFinished()) return;
 
-        clearVacantCache();
         enableChildrenCache();
 
         whichScreen = Math.max(0, Math.min(whichScreen, getChildCount() - 1));
@@ -1041,7 +1074,6 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
 
     public void onDragEnter(DragSource source, int x, int y, int xOffset, int yOffset,
             Object dragInfo) {
-        clearVacantCache();
     }
 
     public void onDragOver(DragSource source, int x, int y, int xOffset, int yOffset,
@@ -1050,7 +1082,7 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
 
     public void onDragExit(DragSource source, int x, int y, int xOffset, int yOffset,
             Object dragInfo) {
-        clearVacantCache();
+        mDropCandidates.reset();
     }
 
     private void onDropExternal(int x, int y, Object dragInfo, CellLayout cellLayout) {
@@ -1113,12 +1145,10 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
         final int spanX = cellInfo == null ? 1 : cellInfo.spanX;
         final int spanY = cellInfo == null ? 1 : cellInfo.spanY;
 
-        if (mVacantCache == null) {
-            final View ignoreView = cellInfo == null ? null : cellInfo.cell;
-            mVacantCache = layout.findAllVacantCells(null, ignoreView);
-        }
+        final View ignoreView = cellInfo == null ? null : cellInfo.cell;
+        layout.updateDropCandidates(mDropCandidates, spanX, spanY, ignoreView);
 
-        return mVacantCache.findCellForSpan(mTempEstimate, spanX, spanY, false);
+        return !mDropCandidates.isEmpty();
     }
     
     /**
@@ -1158,13 +1188,11 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
      */
     private int[] estimateDropCell(int pixelX, int pixelY,
             int spanX, int spanY, View ignoreView, CellLayout layout, int[] recycle) {
-        // Create vacant cell cache if none exists
-        if (mVacantCache == null) {
-            mVacantCache = layout.findAllVacantCells(null, ignoreView);
-        }
+        // Only computed again when the layout, the span or the occupied cells changed
+        layout.updateDropCandidates(mDropCandidates, spanX, spanY, ignoreView);
 
         // Find the best target drop location
-        return layout.findNearestVacantArea(pixelX, pixelY, spanX, spanY, mVacantCache, recycle);
+        return layout.findNearestDropCell(mDropCandidates, pixelX, pixelY, recycle);
     }
     
     void setLauncher(Launcher launcher) {
@@ -1176,8 +1204,7 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
     }
 
     public void onDropCompleted(View target, boolean success) {
-        // This is a bit expensive but safe
-        clearVacantCache();
+        mDropCandidates.reset();
 
         if (success){
             if (target != this && mDragInfo != null) {
@@ -1197,14 +1224,12 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
     }
 
     public void scrollLeft() {
-        clearVacantCache();
         if (mNextScreen == INVALID_SCREEN && mCurrentScreen > 0 && mScroller.isFinished()) {
             snapToScreen(mCurrentScreen - 1);
         }
     }
 
     public void scrollRight() {
-        clearVacantCache();
         if (mNextScreen == INVALID_SCREEN && mCurrentScreen < getChildCount() -1 &&
                 mScroller.isFinished()) {
             snapToScreen(mCurrentScreen + 1);
@@ -1249,37 +1274,18 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
     }
 
     public Folder getFolderForTag(Object tag) {
-        int screenCount = getChildCount();
-        for (int screen = 0; screen < screenCount; screen++) {
-            CellLayout currentScreen = ((CellLayout) getChildAt(screen));
-            int count = currentScreen.getChildCount();
-            for (int i = 0; i < count; i++) {
-                View child = currentScreen.getChildAt(i);
-                CellLayout.LayoutParams lp = (CellLayout.LayoutParams) child.getLayoutParams();
-                if (lp.cellHSpan == 4 && lp.cellVSpan == 4 && child instanceof Folder) {
-                    Folder f = (Folder) child;
-                    if (f.getInfo() == tag) {
-                        return f;
-                    }
-                }
-            }
-        }
-        return null;
+        if (tag == null) return null;
+        final Folder folder = mFoldersByInfo.get(tag);
+        if (folder == null || folder.getInfo() != tag) return null;
+
+        final CellLayout.LayoutParams lp = (CellLayout.LayoutParams) folder.getLayoutParams();
+        return lp.cellHSpan == 4 && lp.cellVSpan == 4 ? folder : null;
     }
 
     public View getViewForTag(Object tag) {
-        int screenCount = getChildCount();
-        for (int screen = 0; screen < screenCount; screen++) {
-            CellLayout currentScreen = ((CellLayout) getChildAt(screen));
-            int count = currentScreen.getChildCount();
-            for (int i = 0; i < count; i++) {
-                View child = currentScreen.getChildAt(i);
-                if (child.getTag() == tag) {
-                    return child;
-                }
-            }
-        }
-        return null;
+        if (tag == null) return null;
+        final View view = mViewsByTag.get(tag);
+        return view != null && view.getTag() == tag ? view : null;
     }
 
     /**
@@ -1315,6 +1321,39 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
         mAllowLongPress = allowLongPress;
     }
 
+    /**
+     * Removes from the screens the views bound to the specified items.
+     */
+    void removeItems(ArrayList<ItemInfo> items) {
+        if (items.size() == 0) return;
+
+        final ArrayList<View> childrenToRemove = new ArrayList<View>();
+        final int count = getChildCount();
+
+        for (int i = 0; i < count; i++) {
+            final CellLayout layout = (CellLayout) getChildAt(i);
+            final int childCount = layout.getChildCount();
+
+            childrenToRemove.clear();
+            for (int j = 0; j < childCount; j++) {
+                final View view = layout.getChildAt(j);
+                if (items.contains(view.getTag())) {
+                    childrenToRemove.add(view);
+                }
+            }
+
+            final int removeCount = childrenToRemove.size();
+            for (int j = 0; j < removeCount; j++) {
+                layout.removeViewInLayout(childrenToRemove.get(j));
+            }
+
+            if (removeCount > 0) {
+                layout.requestLayout();
+                layout.invalidate();
+            }
+        }
+    }
+
     void removeShortcutsForPackage(String packageName) {
         final ArrayList<View> childrenToRemove = new ArrayList<View>();
         final LauncherModel model = Launcher.getModel();
@@ -1404,13 +1443,15 @@ public class Workspace extends ViewGroup implements DropTarget, DragSource, Drag
                             packageName.equals(name.getPackageName())) {
 
                         final Drawable icon = Launcher.getModel().getApplicationInfoIcon(
-                                mLauncher.getPackageManager(), info);
+                                mLauncher.getPackageManager(), info, mContext);
                         if (icon != null && icon != info.icon) {
-                            info.icon.setCallback(null);
+                            final Drawable oldIcon = info.icon;
+                            oldIcon.setCallback(null);
                             info.icon = Utilities.createIconThumbnail(icon, mContext);
                             info.filtered = true;
                             ((TextView) view).setCompoundDrawablesWithIntrinsicBounds(null,
                                     info.icon, null, null);
+                            FastBitmapDrawable.release(oldIcon);
                         }
                     }
                 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks how {@link CellLayout} picks the drop column nearest a location.
+ */
+public class CellLayoutTest extends TestCase {
+    private static final int PADDING = 0;
+    private static final int PITCH = 80;
+
+    @SmallTest
+    public void testNextColumnWhenNearer() {
+        // Over column 0 but 5 pixels from column 1, both free
+        assertEquals(1, CellLayout.findNearestColumn(0x3L, 0, PADDING, PITCH, 75));
+    }
+
+    @SmallTest
+    public void testColumnUnderLocationWhenNearer() {
+        assertEquals(0, CellLayout.findNearestColumn(0x3L, 0, PADDING, PITCH, 30));
+    }
+
+    @SmallTest
+    public void testTieKeepsLeftColumn() {
+        assertEquals(0, CellLayout.findNearestColumn(0x3L, 0, PADDING, PITCH, 40));
+    }
+
+    @SmallTest
+    public void testOccupiedColumnUnderLocation() {
+        // Column 2 is taken, 1 and 3 are free
+        assertEquals(3, CellLayout.findNearestColumn(0xaL, 2, PADDING, PITCH, 220));
+        assertEquals(1, CellLayout.findNearestColumn(0xaL, 2, PADDING, PITCH, 160));
+    }
+
+    @SmallTest
+    public void testOnlyOneSideFree() {
+        assertEquals(4, CellLayout.findNearestColumn(0x10L, 0, PADDING, PITCH, 10));
+        assertEquals(0, CellLayout.findNearestColumn(0x1L, 3, PADDING, PITCH, 250));
+    }
+
+    @SmallTest
+    public void testLastColumn() {
+        final long row = 1L << 63 | 1L;
+        assertEquals(63, CellLayout.findNearestColumn(row, 63, PADDING, PITCH, 63 * PITCH));
+        assertEquals(63, CellLayout.findNearestColumn(1L << 63, 62, PADDING, PITCH,
+                62 * PITCH + 75));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.DisplayMetrics;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks that {@link IconRenderer} draws the same pixels for the same icon,
+ * whatever the thread and the number of threads rendering at once.
+ */
+public class IconRendererTest extends TestCase {
+    private static final int ICON_SIZE = 48;
+    private static final int SOURCE_SIZE = 96;
+    private static final int THREADS = 8;
+    private static final int RENDERS_PER_THREAD = 50;
+
+    private IconRenderer mRenderer;
+
+    /**
+     * Renders an icon and returns its pixels.
+     */
+    private interface Render {
+        int[] render();
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final DisplayMetrics metrics = new DisplayMetrics();
+        metrics.setToDefaults();
+        mRenderer = new IconRenderer(ICON_SIZE, ICON_SIZE, metrics, false);
+    }
+
+    @MediumTest
+    public void testIconBitmapIsIdenticalAcrossThreads() throws Exception {
+        final Drawable icon = new BitmapDrawable(createSource());
+        final Rect bounds = new Rect(1, 2, 3, 4);
+        icon.setBounds(bounds);
+
+        assertIdenticalAcrossThreads(new Render() {
+            public int[] render() {
+                return getPixels(mRenderer.createIconBitmap(icon));
+            }
+        });
+        // The bounds changed while drawing are restored
+        assertEquals(bounds, icon.getBounds());
+    }
+
+    @MediumTest
+    public void testBitmapThumbnailIsIdenticalAcrossThreads() throws Exception {
+        final Bitmap source = createSource();
+
+        assertIdenticalAcrossThreads(new Render() {
+            public int[] render() {
+                final Bitmap thumbnail = mRenderer.createBitmapThumbnail(source);
+                assertNotSame(source, thumbnail);
+                return getPixels(thumbnail);
+            }
+        });
+    }
+
+    /**
+     * Renders once on the calling thread, then many times on several threads
+     * started together, and compares every result with the first one.
+     */
+    private void assertIdenticalAcrossThreads(final Render render) throws Exception {
+        final int[] expected = render.render();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Throwable[] failures = new Throwable[THREADS];
+        final Thread[] threads = new Thread[THREADS];
+
+        for (int i = 0; i < THREADS; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < RENDERS_PER_THREAD; j++) {
+                            if (!Arrays.equals(expected, render.render())) {
+                                fail("Render " + j + " differs from the reference");
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failures[index] = t;
+                    }
+                }
+            }, "Icon renderer test " + i);
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (int i = 0; i < THREADS; i++) {
+            threads[i].join();
+        }
+
+        for (int i = 0; i < THREADS; i++) {
+            if (failures[i] != null) {
+                final AssertionError error = new AssertionError(
+                        "Thread " + i + " failed: " + failures[i]);
+                error.initCause(failures[i]);
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Returns the pixels of the specified thumbnail and gives it back to the
+     * pool, the next renders reuse it.
+     */
+    private static int[] getPixels(Bitmap thumbnail) {
+        assertEquals(ICON_SIZE, thumbnail.getWidth());
+        assertEquals(ICON_SIZE, thumbnail.getHeight());
+
+        final int[] pixels = new int[ICON_SIZE * ICON_SIZE];
+        thumbnail.getPixels(pixels, 0, ICON_SIZE, 0, 0, ICON_SIZE, ICON_SIZE);
+        BitmapPool.release(thumbnail);
+        return pixels;
+    }
+
+    /**
+     * Returns a translucent gradient larger than the thumbnails.
+     */
+    private static Bitmap createSource() {
+        final Bitmap source = Bitmap.createBitmap(SOURCE_SIZE, SOURCE_SIZE,
+                Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < SOURCE_SIZE; y++) {
+            for (int x = 0; x < SOURCE_SIZE; x++) {
+                source.setPixel(x, y, Color.argb(x * 255 / SOURCE_SIZE, y * 255 / SOURCE_SIZE,
+                        (x + y) * 127 / SOURCE_SIZE, 0x80));
+            }
+        }
+        return source;
+    }
+}